@@ -0,0 +1,220 @@
+package at.tomtasche.reader.test;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.pdf.PdfDocument;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * generates the documents the benchmarks run on, so the corpus doesn't have to be checked in.
+ * the same size always produces the same document.
+ */
+class BenchmarkCorpus {
+
+    enum Size {
+        SMALL(20),
+        MEDIUM(2000),
+        HUGE(50000);
+
+        // paragraphs of text documents, rows of spreadsheets and CSV files, lines of PDFs
+        final int lines;
+
+        Size(int lines) {
+            this.lines = lines;
+        }
+    }
+
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog and keeps running through the document.";
+
+    private static final int SPREADSHEET_COLUMNS = 10;
+    private static final int PDF_LINES_PER_PAGE = 50;
+
+    private static final String ODF_MANIFEST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<manifest:manifest xmlns:manifest=\"urn:oasis:names:tc:opendocument:xmlns:manifest:1.0\" manifest:version=\"1.2\">"
+            + "<manifest:file-entry manifest:full-path=\"/\" manifest:media-type=\"%s\"/>"
+            + "<manifest:file-entry manifest:full-path=\"content.xml\" manifest:media-type=\"text/xml\"/>"
+            + "</manifest:manifest>";
+
+    private static final String ODF_CONTENT_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<office:document-content"
+            + " xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\""
+            + " xmlns:table=\"urn:oasis:names:tc:opendocument:xmlns:table:1.0\""
+            + " xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\""
+            + " office:version=\"1.2\"><office:body>";
+    private static final String ODF_CONTENT_END = "</office:body></office:document-content>";
+
+    static File writeText(File directory, Size size) throws IOException {
+        File dst = new File(directory, "text-" + size.name().toLowerCase() + ".odt");
+
+        writeOdf(dst, "application/vnd.oasis.opendocument.text", writer -> {
+            writer.write("<office:text>");
+            for (int i = 0; i < size.lines; i++) {
+                writer.write("<text:p>" + i + ' ' + TEXT + "</text:p>");
+            }
+            writer.write("</office:text>");
+        });
+
+        return dst;
+    }
+
+    static File writeSpreadsheet(File directory, Size size) throws IOException {
+        File dst = new File(directory, "spreadsheet-" + size.name().toLowerCase() + ".ods");
+
+        // split across a few sheets like most real spreadsheets
+        writeSpreadsheet(dst, 3, size.lines / 3);
+
+        return dst;
+    }
+
+    // builds a minimal ODS with the given number of sheets and rows per sheet
+    static void writeSpreadsheet(File dst, int sheets, int rows) throws IOException {
+        writeOdf(dst, "application/vnd.oasis.opendocument.spreadsheet", writer -> {
+            writer.write("<office:spreadsheet>");
+            for (int i = 0; i < sheets; i++) {
+                writer.write("<table:table table:name=\"Sheet" + (i + 1) + "\">");
+                writer.write("<table:table-column table:number-columns-repeated=\"" + SPREADSHEET_COLUMNS + "\"/>");
+                for (int row = 0; row < rows; row++) {
+                    writer.write("<table:table-row>");
+                    for (int column = 0; column < SPREADSHEET_COLUMNS; column++) {
+                        writer.write("<table:table-cell><text:p>" + (row * SPREADSHEET_COLUMNS + column) + "</text:p></table:table-cell>");
+                    }
+                    writer.write("</table:table-row>");
+                }
+                writer.write("</table:table>");
+            }
+            writer.write("</office:spreadsheet>");
+        });
+    }
+
+    static File writeDocx(File directory, Size size) throws IOException {
+        File dst = new File(directory, "text-" + size.name().toLowerCase() + ".docx");
+
+        String contentTypes = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+                + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+                + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+                + "<Override PartName=\"/word/document.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml\"/>"
+                + "</Types>";
+        String relationships = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+                + "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"word/document.xml\"/>"
+                + "</Relationships>";
+
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(dst))) {
+            writeEntry(zip, "[Content_Types].xml", writer -> writer.write(contentTypes));
+            writeEntry(zip, "_rels/.rels", writer -> writer.write(relationships));
+            writeEntry(zip, "word/document.xml", writer -> {
+                writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+                writer.write("<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\"><w:body>");
+                for (int i = 0; i < size.lines; i++) {
+                    writer.write("<w:p><w:r><w:t>" + i + ' ' + TEXT + "</w:t></w:r></w:p>");
+                }
+                writer.write("</w:body></w:document>");
+            });
+        }
+
+        return dst;
+    }
+
+    static File writePdf(File directory, Size size) throws IOException {
+        File dst = new File(directory, "text-" + size.name().toLowerCase() + ".pdf");
+
+        Paint paint = new Paint();
+        paint.setTextSize(10);
+
+        PdfDocument pdf = new PdfDocument();
+        try {
+            int pages = (size.lines + PDF_LINES_PER_PAGE - 1) / PDF_LINES_PER_PAGE;
+            for (int i = 0; i < pages; i++) {
+                PdfDocument.Page page = pdf.startPage(new PdfDocument.PageInfo.Builder(595, 842, i + 1).create());
+
+                Canvas canvas = page.getCanvas();
+                for (int line = 0; line < PDF_LINES_PER_PAGE && i * PDF_LINES_PER_PAGE + line < size.lines; line++) {
+                    canvas.drawText((i * PDF_LINES_PER_PAGE + line) + " " + TEXT, 40, 40 + line * 15, paint);
+                }
+
+                pdf.finishPage(page);
+            }
+
+            try (OutputStream out = new FileOutputStream(dst)) {
+                pdf.writeTo(out);
+            }
+        } finally {
+            pdf.close();
+        }
+
+        return dst;
+    }
+
+    static File writeCsv(File directory, Size size) throws IOException {
+        File dst = new File(directory, "table-" + size.name().toLowerCase() + ".csv");
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dst), StandardCharsets.UTF_8))) {
+            for (int row = 0; row < size.lines; row++) {
+                for (int column = 0; column < SPREADSHEET_COLUMNS; column++) {
+                    if (column > 0) {
+                        writer.write(',');
+                    }
+
+                    writer.write(Integer.toString(row * SPREADSHEET_COLUMNS + column));
+                }
+
+                writer.write('\n');
+            }
+        }
+
+        return dst;
+    }
+
+    private static void writeOdf(File dst, String mediaType, Content body) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(dst))) {
+            // mimetype has to be the first entry and uncompressed
+            byte[] mimetype = mediaType.getBytes(StandardCharsets.US_ASCII);
+            CRC32 crc = new CRC32();
+            crc.update(mimetype);
+
+            ZipEntry mimetypeEntry = new ZipEntry("mimetype");
+            mimetypeEntry.setMethod(ZipEntry.STORED);
+            mimetypeEntry.setSize(mimetype.length);
+            mimetypeEntry.setCrc(crc.getValue());
+            zip.putNextEntry(mimetypeEntry);
+            zip.write(mimetype);
+            zip.closeEntry();
+
+            writeEntry(zip, "META-INF/manifest.xml", writer -> writer.write(String.format(ODF_MANIFEST, mediaType)));
+            writeEntry(zip, "content.xml", writer -> {
+                writer.write(ODF_CONTENT_START);
+                body.write(writer);
+                writer.write(ODF_CONTENT_END);
+            });
+        }
+    }
+
+    // the entry is streamed into the archive, the huge documents don't fit into a string comfortably
+    private static void writeEntry(ZipOutputStream zip, String name, Content content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8));
+        content.write(writer);
+        // flushed but not closed, closing would close the archive too
+        writer.flush();
+
+        zip.closeEntry();
+    }
+
+    private interface Content {
+
+        void write(Writer writer) throws IOException;
+    }
+}
@@ -0,0 +1,120 @@
+package at.tomtasche.reader.test;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+import at.tomtasche.reader.background.CoreWrapper;
+
+/**
+ * measures the overhead of calling into the core for spreadsheets with many sheets.
+ * results are written to logcat with the tag "CoreBenchmark".
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class CoreBenchmarkTest {
+
+    private static final String TAG = "CoreBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int ITERATIONS = 5;
+
+    private File m_cacheDir;
+
+    @Before
+    public void setUp() {
+        m_cacheDir = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "benchmark");
+        m_cacheDir.mkdirs();
+    }
+
+    @After
+    public void cleanup() {
+        delete(m_cacheDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private long measureParse(CoreWrapper core, int sheets) throws IOException {
+        File testFile = new File(m_cacheDir, "sheets-" + sheets + ".ods");
+        BenchmarkCorpus.writeSpreadsheet(testFile, sheets, 1);
+
+        File outputDirectory = new File(m_cacheDir, "html-" + sheets);
+        outputDirectory.mkdirs();
+
+        CoreWrapper.CoreOptions coreOptions = new CoreWrapper.CoreOptions();
+        coreOptions.inputPath = testFile.getAbsolutePath();
+        coreOptions.outputPath = outputDirectory.getPath();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            core.parse(coreOptions);
+        }
+
+        long total = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            CoreWrapper.CoreResult coreResult = core.parse(coreOptions);
+            total += System.nanoTime() - start;
+
+            Assert.assertEquals(0, coreResult.errorCode);
+            Assert.assertEquals(sheets, coreResult.pageNames.length);
+            Assert.assertEquals(sheets, coreResult.pagePaths.length);
+        }
+
+        return total / ITERATIONS;
+    }
+
+    @Test
+    public void nativeCallOverhead() {
+        CoreWrapper core = new CoreWrapper();
+        core.initialize();
+
+        for (int i = 0; i < 1000; i++) {
+            core.isOpen();
+        }
+
+        int calls = 100000;
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            core.isOpen();
+        }
+        long perCall = (System.nanoTime() - start) / calls;
+
+        Log.i(TAG, "native call: " + perCall + " ns");
+
+        core.close();
+    }
+
+    @Test
+    public void parseManySheets() throws IOException {
+        CoreWrapper core = new CoreWrapper();
+        core.initialize();
+
+        long single = measureParse(core, 1);
+        long many = measureParse(core, 300);
+
+        Log.i(TAG, "parse 1 sheet: " + single / 1000 + " us");
+        Log.i(TAG, "parse 300 sheets: " + many / 1000 + " us, " + (many - single) / 299 / 1000 + " us per additional sheet");
+
+        core.close();
+    }
+}
@@ -80,4 +80,35 @@ public class CoreTest {
         CoreWrapper.CoreResult result = core.backtranslate(coreOptions, htmlDiff);
         Assert.assertEquals(0, coreResult.errorCode);
     }
+
+    @Test
+    public void testEditThenSave() {
+        CoreWrapper core = new CoreWrapper();
+        core.initialize();
+
+        File cacheDir = InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir();
+        File htmlFile = new File(cacheDir, "html");
+
+        CoreWrapper.CoreOptions coreOptions = new CoreWrapper.CoreOptions();
+        coreOptions.inputPath = m_testFile.getAbsolutePath();
+        coreOptions.outputPath = htmlFile.getPath();
+        coreOptions.editable = true;
+
+        CoreWrapper.CoreResult coreResult = core.parse(coreOptions);
+        Assert.assertEquals(0, coreResult.errorCode);
+
+        String htmlDiff = "{\"modifiedText\":{\"3\":\"This is a simple test document to demonstrate the DocumentLoadewwwwr example!\"}}";
+
+        CoreWrapper.CoreResult editResult = core.edit(htmlDiff);
+        Assert.assertEquals(0, editResult.errorCode);
+
+        File resultFile = new File(cacheDir, "result");
+        coreOptions.outputPath = resultFile.getPath();
+
+        CoreWrapper.CoreResult saveResult = core.backtranslate(coreOptions, null);
+        Assert.assertEquals(0, saveResult.errorCode);
+        Assert.assertTrue(new File(saveResult.outputPath).length() > 0);
+
+        core.close();
+    }
 }
@@ -0,0 +1,378 @@
+package at.tomtasche.reader.test;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import at.tomtasche.reader.background.FileLoader;
+import at.tomtasche.reader.background.MetadataLoader;
+import at.tomtasche.reader.background.OdfLoader;
+import at.tomtasche.reader.background.OoxmlLoader;
+import at.tomtasche.reader.background.PdfLoader;
+import at.tomtasche.reader.background.RawLoader;
+import at.tomtasche.reader.background.RecentDocumentsUtil;
+import at.tomtasche.reader.background.StreamUtil;
+import at.tomtasche.reader.nonfree.AnalyticsManager;
+import at.tomtasche.reader.nonfree.ConfigManager;
+import at.tomtasche.reader.nonfree.CrashManager;
+
+/**
+ * measures the loader pipeline on generated documents of different sizes, from copying the document
+ * into the cache to the final pages. results are written to logcat with the tag "LoaderBenchmark",
+ * one line per operation and size with the time, throughput and Java heap allocated per operation.
+ * memory allocated by the core and the converters is not included.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class LoaderBenchmarkTest {
+
+    private static final String TAG = "LoaderBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 1;
+    // generous, the biggest documents of the corpus take a while to translate
+    private static final long DRAIN_TIMEOUT_MINUTES = 5;
+
+    private static File s_corpusDir;
+
+    private Context m_context;
+    private File m_outputDir;
+
+    private HandlerThread m_mainThread;
+    private HandlerThread m_backgroundThread;
+    private Handler m_mainHandler;
+    private Handler m_backgroundHandler;
+
+    private byte[] m_recentDocumentsBackup;
+
+    @BeforeClass
+    public static void createCorpus() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+        s_corpusDir = new File(context.getCacheDir(), "benchmark-corpus");
+        s_corpusDir.mkdirs();
+
+        for (BenchmarkCorpus.Size size : BenchmarkCorpus.Size.values()) {
+            BenchmarkCorpus.writeText(s_corpusDir, size);
+            BenchmarkCorpus.writeSpreadsheet(s_corpusDir, size);
+            BenchmarkCorpus.writeDocx(s_corpusDir, size);
+            BenchmarkCorpus.writePdf(s_corpusDir, size);
+            BenchmarkCorpus.writeCsv(s_corpusDir, size);
+        }
+    }
+
+    @AfterClass
+    public static void deleteCorpus() {
+        delete(s_corpusDir);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        m_context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+        m_outputDir = new File(m_context.getCacheDir(), "benchmark-output");
+        m_outputDir.mkdirs();
+
+        // listeners are called on a separate thread, the UI thread is not involved in loading
+        m_mainThread = new HandlerThread("benchmark-main");
+        m_mainThread.start();
+        m_mainHandler = new Handler(m_mainThread.getLooper());
+
+        m_backgroundThread = new HandlerThread("benchmark-background");
+        m_backgroundThread.start();
+        m_backgroundHandler = new Handler(m_backgroundThread.getLooper());
+
+        File recentDocuments = m_context.getFileStreamPath("recent_documents.json");
+        if (recentDocuments.exists()) {
+            m_recentDocumentsBackup = readFile(recentDocuments);
+        }
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        m_mainThread.quit();
+        m_backgroundThread.quit();
+
+        delete(m_outputDir);
+
+        File recentDocuments = m_context.getFileStreamPath("recent_documents.json");
+        if (m_recentDocumentsBackup != null) {
+            StreamUtil.copy(new ByteArrayInputStream(m_recentDocumentsBackup), recentDocuments);
+        } else {
+            recentDocuments.delete();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamUtil.copy(file, out);
+
+        return out.toByteArray();
+    }
+
+    private static File getCorpusFile(String prefix, BenchmarkCorpus.Size size, String extension) {
+        return new File(s_corpusDir, prefix + "-" + size.name().toLowerCase() + "." + extension);
+    }
+
+    // the huge documents take long enough for a single run to be meaningful
+    private static int getIterations(BenchmarkCorpus.Size size) {
+        switch (size) {
+            case SMALL:
+                return 10;
+            case MEDIUM:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        // counts the allocations of all threads, the loaders run on their own
+        String bytes = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        if (bytes == null) {
+            return -1;
+        }
+
+        return Long.parseLong(bytes);
+    }
+
+    private void measure(String name, BenchmarkCorpus.Size size, File input, Operation setup, Operation operation) throws Exception {
+        int iterations = getIterations(size);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            setup.run();
+            operation.run();
+        }
+
+        long totalNanos = 0;
+        long totalAllocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            setup.run();
+
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+
+            operation.run();
+
+            totalNanos += System.nanoTime() - start;
+            totalAllocated += getAllocatedBytes() - allocatedBefore;
+        }
+
+        double millisPerOperation = totalNanos / 1e6 / iterations;
+        double megabytesPerSecond = input.length() / 1024.0 / 1024.0 / (millisPerOperation / 1000.0);
+        long allocatedKbPerOperation = totalAllocated / iterations / 1024;
+
+        Log.i(TAG, String.format(Locale.ROOT, "%-16s %-6s %8d KB %10.1f ms/op %8.2f MB/s %10d KB alloc/op",
+                name, size.name().toLowerCase(), input.length() / 1024, millisPerOperation, megabytesPerSecond, allocatedKbPerOperation));
+    }
+
+    private FileLoader.Result load(FileLoader loader, FileLoader.Options options) throws Exception {
+        ResultListener listener = new ResultListener();
+        loader.initialize(listener, m_mainHandler, m_backgroundHandler, new AnalyticsManager(), new CrashManager());
+
+        try {
+            loader.loadAsync(options);
+
+            // loaders may queue more work for the same document, e.g. the complete translation after a preview
+            do {
+                drain(m_backgroundHandler);
+                drain(m_mainHandler);
+            } while (!m_backgroundThread.getLooper().getQueue().isIdle() || !m_mainThread.getLooper().getQueue().isIdle());
+        } finally {
+            loader.close();
+            drain(m_backgroundHandler);
+        }
+
+        if (listener.error != null) {
+            throw new AssertionError(loader.getClass().getSimpleName() + " failed", listener.error);
+        }
+
+        Assert.assertNotNull(listener.result);
+        Assert.assertFalse(listener.result.partUris.isEmpty());
+
+        return listener.result;
+    }
+
+    private static void drain(Handler handler) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        handler.post(latch::countDown);
+        Assert.assertTrue("handler did not drain in time", latch.await(DRAIN_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+    }
+
+    private FileLoader.Options copyToCache(File file) throws Exception {
+        FileLoader.Options options = new FileLoader.Options();
+        options.originalUri = Uri.fromFile(file);
+
+        return load(new MetadataLoader(m_context), options).options;
+    }
+
+    // every iteration needs options of its own, the loaders keep state in them
+    private static FileLoader.Options copyOptions(FileLoader.Options options) {
+        FileLoader.Options copy = new FileLoader.Options();
+        copy.originalUri = options.originalUri;
+        copy.cacheUri = options.cacheUri;
+        copy.fileExists = options.fileExists;
+        copy.filename = options.filename;
+        copy.fileType = options.fileType;
+        copy.fileExtension = options.fileExtension;
+
+        return copy;
+    }
+
+    private void clearTranslationCache() {
+        // reopening an unchanged document is served from TranslationCache without calling into the core
+        delete(new File(m_context.getCacheDir(), "translations"));
+    }
+
+    private void measureLoader(String name, LoaderFactory factory, String prefix, String extension) throws Exception {
+        for (BenchmarkCorpus.Size size : BenchmarkCorpus.Size.values()) {
+            File input = getCorpusFile(prefix, size, extension);
+            FileLoader.Options options = copyToCache(input);
+
+            measure(name, size, input, this::clearTranslationCache, () -> load(factory.create(), copyOptions(options)));
+        }
+    }
+
+    @Test
+    public void streamCopy() throws Exception {
+        for (BenchmarkCorpus.Size size : BenchmarkCorpus.Size.values()) {
+            File input = getCorpusFile("spreadsheet", size, "ods");
+            File output = new File(m_outputDir, "copy");
+
+            measure("StreamUtil.copy", size, input, output::delete, () -> StreamUtil.copy(input, output));
+
+            Assert.assertEquals(input.length(), output.length());
+        }
+    }
+
+    @Test
+    public void metadataLoader() throws Exception {
+        for (BenchmarkCorpus.Size size : BenchmarkCorpus.Size.values()) {
+            File input = getCorpusFile("text", size, "odt");
+
+            // a new modification time makes DocumentCacheIndex miss, the document is copied again
+            measure("metadata cold", size, input, () -> input.setLastModified(System.currentTimeMillis() - 1000),
+                    () -> copyToCache(input));
+
+            measure("metadata warm", size, input, () -> {}, () -> copyToCache(input));
+        }
+    }
+
+    @Test
+    public void odfLoader() throws Exception {
+        ConfigManager configManager = new ConfigManager();
+
+        measureLoader("odf text", () -> new OdfLoader(m_context, configManager), "text", "odt");
+        measureLoader("odf spreadsheet", () -> new OdfLoader(m_context, configManager), "spreadsheet", "ods");
+    }
+
+    @Test
+    public void ooxmlLoader() throws Exception {
+        measureLoader("ooxml text", () -> new OoxmlLoader(m_context), "text", "docx");
+    }
+
+    @Test
+    public void pdfLoader() throws Exception {
+        measureLoader("pdf", () -> new PdfLoader(m_context), "text", "pdf");
+    }
+
+    @Test
+    public void rawLoader() throws Exception {
+        measureLoader("raw csv", () -> new RawLoader(m_context, configManager), "table", "csv");
+    }
+
+    @Test
+    public void recentDocuments() throws Exception {
+        for (BenchmarkCorpus.Size size : BenchmarkCorpus.Size.values()) {
+            File input = getCorpusFile("text", size, "odt");
+
+            // the list grows with every document that was ever opened
+            int documents = size.lines / 20;
+
+            m_context.deleteFile("recent_documents.json");
+            for (int i = 0; i < documents; i++) {
+                RecentDocumentsUtil.addRecentDocument(m_context, "document-" + i + ".odt", Uri.parse("content://benchmark/document-" + i));
+            }
+
+            Uri uri = Uri.parse("content://benchmark/" + input.getName());
+            measure("recent documents", size, m_context.getFileStreamPath("recent_documents.json"), () -> {}, () -> {
+                RecentDocumentsUtil.addRecentDocument(m_context, input.getName(), uri);
+
+                Map<String, String> recentDocuments = RecentDocumentsUtil.getRecentDocuments(m_context);
+                Assert.assertEquals(documents + 1, recentDocuments.size());
+
+                RecentDocumentsUtil.removeRecentDocument(m_context, input.getName(), uri);
+            });
+        }
+    }
+
+    private interface Operation {
+
+        void run() throws Exception;
+    }
+
+    private interface LoaderFactory {
+
+        FileLoader create();
+    }
+
+    private static class ResultListener implements FileLoader.FileLoaderListener {
+
+        // the last one wins, an update replaces the preview delivered before
+        private volatile FileLoader.Result result;
+        private volatile Throwable error;
+
+        @Override
+        public void onTypeSniffed(FileLoader.Options options, String fileType) {
+        }
+
+        @Override
+        public void onSuccess(FileLoader.Result result) {
+            this.result = result;
+        }
+
+        @Override
+        public void onUpdate(FileLoader.Result result) {
+            this.result = result;
+        }
+
+        @Override
+        public void onError(FileLoader.Result result, Throwable throwable) {
+            this.error = throwable;
+        }
+    }
+}
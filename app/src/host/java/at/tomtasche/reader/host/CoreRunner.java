@@ -0,0 +1,121 @@
+package at.tomtasche.reader.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import at.tomtasche.reader.background.CoreWrapper;
+
+/**
+ * translates documents with the core on a desktop JVM, so it can be benchmarked and profiled
+ * without an emulator. built and started by build-host.sh in the root of the repository:
+ *
+ * <pre>
+ * ./build-host.sh [--iterations n] [--editable] document...
+ * </pre>
+ * <p>
+ * prints the metrics of every iteration and a summary per document. exits with 1 if a document
+ * could not be translated.
+ */
+public class CoreRunner {
+
+    private static final int DEFAULT_ITERATIONS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = DEFAULT_ITERATIONS;
+        boolean editable = false;
+        List<File> documents = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--iterations".equals(args[i]) && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if ("--editable".equals(args[i])) {
+                editable = true;
+            } else {
+                documents.add(new File(args[i]));
+            }
+        }
+
+        if (documents.isEmpty()) {
+            System.err.println("usage: CoreRunner [--iterations n] [--editable] document...");
+            System.exit(2);
+        }
+
+        File outputRoot = Files.createTempDirectory("odr-core").toFile();
+
+        CoreWrapper core = new CoreWrapper();
+        core.initialize();
+
+        boolean failed = false;
+        try {
+            for (File document : documents) {
+                failed |= !run(core, document, new File(outputRoot, document.getName()), iterations, editable);
+            }
+        } finally {
+            core.close();
+
+            delete(outputRoot);
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static boolean run(CoreWrapper core, File document, File outputDirectory, int iterations, boolean editable) {
+        outputDirectory.mkdirs();
+
+        String name = document.getName();
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+
+        // same options the loaders use for these types
+        CoreWrapper.CoreOptions options = new CoreWrapper.CoreOptions();
+        options.inputPath = document.getAbsolutePath();
+        options.outputPath = outputDirectory.getPath();
+        options.editable = editable;
+        options.ooxml = extension.equals("docx") || extension.equals("xlsx") || extension.equals("pptx");
+        options.txt = extension.equals("txt") || extension.equals("csv");
+
+        long totalNanos = 0;
+        long minNanos = Long.MAX_VALUE;
+        int pages = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            CoreWrapper.CoreResult result = core.parse(options);
+            long elapsed = System.nanoTime() - start;
+
+            if (result.exception != null) {
+                System.out.println(name + ": failed with " + result.exception.getClass().getSimpleName() + " (" + result.errorCode + ")");
+
+                return false;
+            }
+
+            totalNanos += elapsed;
+            minNanos = Math.min(minNanos, elapsed);
+            pages = result.pageNames.length;
+
+            System.out.println(String.format(Locale.ROOT, "%s #%d: %d ms, %s", name, i + 1, elapsed / 1000000, result.metrics));
+        }
+
+        double averageMillis = totalNanos / 1e6 / iterations;
+        double megabytesPerSecond = document.length() / 1024.0 / 1024.0 / (averageMillis / 1000.0);
+
+        System.out.println(String.format(Locale.ROOT, "%s: %d KB, %d pages, %.1f ms avg, %.1f ms min, %.2f MB/s",
+                name, document.length() / 1024, pages, averageMillis, minNanos / 1e6, megabytesPerSecond));
+
+        return true;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -6,27 +6,266 @@
 #include <odr/open_document_reader.hpp>
 #include <odr/exceptions.hpp>
 
+#ifdef __ANDROID__
 #include <android/log.h>
+#endif
 
+#include <sys/resource.h>
+#include <sys/stat.h>
+
+#include <chrono>
+#include <list>
+#include <memory>
+#include <mutex>
+#include <set>
 #include <string>
 #include <optional>
+#include <utility>
+
+namespace {
+
+// shared by the CoreSessionCache of OdfLoader, OoxmlLoader and RawLoader, each keeping up to
+// CoreSessionCache.MAX_SESSIONS open. keep in sync with both
+constexpr std::size_t maxSessions = 3 * 4;
+
+std::mutex sessionsMutex;
+jlong lastSessionHandle = 0;
+// most recently used session first
+std::list<std::pair<jlong, std::shared_ptr<odr::Html>>> sessions;
+
+std::shared_ptr<odr::Html> findSession(jlong handle) {
+    std::lock_guard<std::mutex> lock(sessionsMutex);
+
+    for (auto it = sessions.begin(); it != sessions.end(); ++it) {
+        if (it->first == handle) {
+            sessions.splice(sessions.begin(), sessions, it);
+            return it->second;
+        }
+    }
+
+    return nullptr;
+}
+
+void storeSession(jlong handle, std::shared_ptr<odr::Html> html) {
+    std::lock_guard<std::mutex> lock(sessionsMutex);
+
+    sessions.remove_if([handle](const auto &session) { return session.first == handle; });
+    sessions.emplace_front(handle, std::move(html));
+
+    while (sessions.size() > maxSessions) {
+        sessions.pop_back();
+    }
+}
+
+void removeSession(jlong handle) {
+    std::lock_guard<std::mutex> lock(sessionsMutex);
+
+    sessions.remove_if([handle](const auto &session) { return session.first == handle; });
+}
+
+// sessions whose translation was abandoned on the Java side, checked between the steps of parseNative
+std::set<jlong> cancelledSessions;
+
+bool isCancelled(jlong handle) {
+    std::lock_guard<std::mutex> lock(sessionsMutex);
+
+    return cancelledSessions.count(handle) > 0;
+}
 
-std::optional<odr::Html> html;
+using Clock = std::chrono::steady_clock;
+
+long peakRssKb() {
+    rusage usage{};
+    if (getrusage(RUSAGE_SELF, &usage) != 0) {
+        return 0;
+    }
+
+    // kilobytes on Linux
+    return usage.ru_maxrss;
+}
+
+jlong fileSize(const std::string &path) {
+    struct stat fileStat{};
+    if (stat(path.c_str(), &fileStat) != 0) {
+        return 0;
+    }
+
+    return fileStat.st_size;
+}
+
+jlong millisBetween(Clock::time_point start, Clock::time_point end) {
+    return std::chrono::duration_cast<std::chrono::milliseconds>(end - start).count();
+}
+
+// resolved once in JNI_OnLoad, classes are pinned with global references so the IDs stay valid
+struct {
+    jclass resultClass;
+    jmethodID resultConstructor;
+    jfieldID resultErrorCode;
+    jfieldID resultPageNames;
+    jfieldID resultPagePaths;
+    jfieldID resultOutputPath;
+    jfieldID resultExtension;
+    jfieldID resultMetrics;
+
+    jfieldID metricsParseMillis;
+    jfieldID metricsWriteMillis;
+    jfieldID metricsBytesWritten;
+    jfieldID metricsPages;
+    jfieldID metricsPeakRssDeltaKb;
+
+    jclass optionsClass;
+    jfieldID optionsOoxml;
+    jfieldID optionsTxt;
+    jfieldID optionsEditable;
+    jfieldID optionsPaging;
+    jfieldID optionsPassword;
+    jfieldID optionsInputPath;
+    jfieldID optionsOutputPath;
+    jfieldID optionsOutputFd;
+    jfieldID optionsSpreadsheetRowLimit;
+    jfieldID optionsSpreadsheetColumnLimit;
+    jfieldID optionsKeepSession;
+
+    jclass stringClass;
+} jni;
+
+jclass findGlobalClass(JNIEnv *env, const char *name) {
+    jclass localClass = env->FindClass(name);
+    if (localClass == nullptr) {
+        return nullptr;
+    }
+
+    auto globalClass = (jclass) env->NewGlobalRef(localClass);
+    env->DeleteLocalRef(localClass);
+    return globalClass;
+}
+
+// fills CoreResult.metrics when the native call returns, no matter which of its many exits is taken
+class MetricsRecorder {
+public:
+    MetricsRecorder(JNIEnv *env, jobject result)
+            : m_env(env), m_result(result), m_start(Clock::now()), m_lap(m_start),
+              m_peakRssBefore(peakRssKb()) {}
+
+    ~MetricsRecorder() {
+        jobject metrics = m_env->GetObjectField(m_result, jni.resultMetrics);
+        if (metrics == nullptr) {
+            return;
+        }
+
+        m_env->SetLongField(metrics, jni.metricsParseMillis, m_parseMillis);
+        m_env->SetLongField(metrics, jni.metricsWriteMillis, m_writeMillis);
+        m_env->SetLongField(metrics, jni.metricsBytesWritten, bytesWritten);
+        m_env->SetIntField(metrics, jni.metricsPages, pages);
+        m_env->SetLongField(metrics, jni.metricsPeakRssDeltaKb, peakRssKb() - m_peakRssBefore);
+        m_env->DeleteLocalRef(metrics);
+    }
+
+    void parsed() {
+        m_lap = Clock::now();
+        m_parseMillis = millisBetween(m_start, m_lap);
+    }
+
+    void written() {
+        m_writeMillis = millisBetween(m_lap, Clock::now());
+    }
+
+    jlong bytesWritten = 0;
+    jint pages = 0;
+
+private:
+    JNIEnv *m_env;
+    jobject m_result;
+
+    Clock::time_point m_start;
+    Clock::time_point m_lap;
+    long m_peakRssBefore;
+
+    jlong m_parseMillis = 0;
+    jlong m_writeMillis = 0;
+};
+
+}
+
+JNIEXPORT jint JNICALL
+JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if (vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+
+    jni.resultClass = findGlobalClass(env, "at/tomtasche/reader/background/CoreWrapper$CoreResult");
+    jni.optionsClass = findGlobalClass(env, "at/tomtasche/reader/background/CoreWrapper$CoreOptions");
+    jni.stringClass = findGlobalClass(env, "java/lang/String");
+    if (jni.resultClass == nullptr || jni.optionsClass == nullptr || jni.stringClass == nullptr) {
+        return JNI_ERR;
+    }
+
+    jni.resultConstructor = env->GetMethodID(jni.resultClass, "<init>", "()V");
+    jni.resultErrorCode = env->GetFieldID(jni.resultClass, "errorCode", "I");
+    jni.resultPageNames = env->GetFieldID(jni.resultClass, "pageNames", "[Ljava/lang/String;");
+    jni.resultPagePaths = env->GetFieldID(jni.resultClass, "pagePaths", "[Ljava/lang/String;");
+    jni.resultOutputPath = env->GetFieldID(jni.resultClass, "outputPath", "Ljava/lang/String;");
+    jni.resultExtension = env->GetFieldID(jni.resultClass, "extension", "Ljava/lang/String;");
+    jni.resultMetrics = env->GetFieldID(jni.resultClass, "metrics", "Lat/tomtasche/reader/background/CoreWrapper$CoreMetrics;");
+
+    jclass metricsClass = env->FindClass("at/tomtasche/reader/background/CoreWrapper$CoreMetrics");
+    if (metricsClass == nullptr) {
+        return JNI_ERR;
+    }
+
+    jni.metricsParseMillis = env->GetFieldID(metricsClass, "parseMillis", "J");
+    jni.metricsWriteMillis = env->GetFieldID(metricsClass, "writeMillis", "J");
+    jni.metricsBytesWritten = env->GetFieldID(metricsClass, "bytesWritten", "J");
+    jni.metricsPages = env->GetFieldID(metricsClass, "pages", "I");
+    jni.metricsPeakRssDeltaKb = env->GetFieldID(metricsClass, "peakRssDeltaKb", "J");
+    env->DeleteLocalRef(metricsClass);
+
+    jni.optionsOoxml = env->GetFieldID(jni.optionsClass, "ooxml", "Z");
+    jni.optionsTxt = env->GetFieldID(jni.optionsClass, "txt", "Z");
+    jni.optionsEditable = env->GetFieldID(jni.optionsClass, "editable", "Z");
+    jni.optionsPaging = env->GetFieldID(jni.optionsClass, "paging", "Z");
+    jni.optionsPassword = env->GetFieldID(jni.optionsClass, "password", "Ljava/lang/String;");
+    jni.optionsInputPath = env->GetFieldID(jni.optionsClass, "inputPath", "Ljava/lang/String;");
+    jni.optionsOutputPath = env->GetFieldID(jni.optionsClass, "outputPath", "Ljava/lang/String;");
+    jni.optionsOutputFd = env->GetFieldID(jni.optionsClass, "outputFd", "I");
+    jni.optionsSpreadsheetRowLimit = env->GetFieldID(jni.optionsClass, "spreadsheetRowLimit", "I");
+    jni.optionsSpreadsheetColumnLimit = env->GetFieldID(jni.optionsClass, "spreadsheetColumnLimit", "I");
+    jni.optionsKeepSession = env->GetFieldID(jni.optionsClass, "keepSession", "Z");
+
+    if (env->ExceptionCheck()) {
+        return JNI_ERR;
+    }
+
+    return JNI_VERSION_1_6;
+}
+
+JNIEXPORT jlong JNICALL
+Java_at_tomtasche_reader_background_CoreWrapper_openNative(JNIEnv *env, jobject instance) {
+    std::lock_guard<std::mutex> lock(sessionsMutex);
+
+    return ++lastSessionHandle;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_at_tomtasche_reader_background_CoreWrapper_isOpenNative(JNIEnv *env, jobject instance,
+                                                             jlong handle) {
+    return findSession(handle) != nullptr;
+}
 
 JNIEXPORT jobject JNICALL
 Java_at_tomtasche_reader_background_CoreWrapper_parseNative(JNIEnv *env, jobject instance,
-                                                            jobject options) {
+                                                            jlong handle, jobject options) {
     jboolean isCopy;
 
-    jclass resultClass = env->FindClass("at/tomtasche/reader/background/CoreWrapper$CoreResult");
-    jmethodID resultConstructor = env->GetMethodID(resultClass, "<init>", "()V");
-    jobject result = env->NewObject(resultClass, resultConstructor);
+    jobject result = env->NewObject(jni.resultClass, jni.resultConstructor);
 
-    jfieldID errorField = env->GetFieldID(resultClass, "errorCode", "I");
+    MetricsRecorder metrics(env, result);
 
-    jclass optionsClass = env->GetObjectClass(options);
-    jfieldID inputPathField = env->GetFieldID(optionsClass, "inputPath", "Ljava/lang/String;");
-    auto inputPath = (jstring) env->GetObjectField(options, inputPathField);
+    jfieldID errorField = jni.resultErrorCode;
+
+    auto inputPath = (jstring) env->GetObjectField(options, jni.optionsInputPath);
 
     const auto inputPathC = env->GetStringUTFChars(inputPath, &isCopy);
     auto inputPathCpp = std::string(inputPathC, env->GetStringUTFLength(inputPath));
@@ -34,44 +273,34 @@ Java_at_tomtasche_reader_background_CoreWrapper_parseNative(JNIEnv *env, jobject
 
     try {
         std::optional<std::string> passwordCpp;
-        jfieldID passwordField = env->GetFieldID(optionsClass, "password", "Ljava/lang/String;");
-        auto password = (jstring) env->GetObjectField(options, passwordField);
+        auto password = (jstring) env->GetObjectField(options, jni.optionsPassword);
         if (password != nullptr) {
             const auto passwordC = env->GetStringUTFChars(password, &isCopy);
             passwordCpp = std::string(passwordC, env->GetStringUTFLength(password));
             env->ReleaseStringUTFChars(password, passwordC);
         }
 
-        jfieldID editableField = env->GetFieldID(optionsClass, "editable", "Z");
-        jboolean editable = env->GetBooleanField(options, editableField);
+        jboolean editable = env->GetBooleanField(options, jni.optionsEditable);
 
-        jfieldID outputPathField = env->GetFieldID(optionsClass, "outputPath",
-                                                   "Ljava/lang/String;");
-        auto outputPath = (jstring) env->GetObjectField(options, outputPathField);
+        auto outputPath = (jstring) env->GetObjectField(options, jni.optionsOutputPath);
 
         const auto outputPathC = env->GetStringUTFChars(outputPath, &isCopy);
         auto outputPathCpp = std::string(outputPathC, env->GetStringUTFLength(outputPath));
         env->ReleaseStringUTFChars(outputPath, outputPathC);
 
-        jclass listClass = env->FindClass("java/util/List");
-        jmethodID addMethod = env->GetMethodID(listClass, "add", "(Ljava/lang/Object;)Z");
-
-        jfieldID pageNamesField = env->GetFieldID(resultClass, "pageNames", "Ljava/util/List;");
-        auto pageNames = (jobject) env->GetObjectField(result, pageNamesField);
-
-        jfieldID pagePathsField = env->GetFieldID(resultClass, "pagePaths", "Ljava/util/List;");
-        auto pagePaths = (jobject) env->GetObjectField(result, pagePathsField);
-
-        jfieldID ooxmlField = env->GetFieldID(optionsClass, "ooxml", "Z");
-        jboolean ooxml = env->GetBooleanField(options, ooxmlField);
-
-        jfieldID txtField = env->GetFieldID(optionsClass, "txt", "Z");
-        jboolean txt = env->GetBooleanField(options, txtField);
-
-        jfieldID pagingField = env->GetFieldID(optionsClass, "paging", "Z");
-        jboolean paging = env->GetBooleanField(options, pagingField);
+        jboolean ooxml = env->GetBooleanField(options, jni.optionsOoxml);
+        jboolean txt = env->GetBooleanField(options, jni.optionsTxt);
+        jboolean paging = env->GetBooleanField(options, jni.optionsPaging);
+        jint spreadsheetRowLimit = env->GetIntField(options, jni.optionsSpreadsheetRowLimit);
+        jint spreadsheetColumnLimit = env->GetIntField(options, jni.optionsSpreadsheetColumnLimit);
+        jboolean keepSession = env->GetBooleanField(options, jni.optionsKeepSession);
 
         try {
+            if (isCancelled(handle)) {
+                env->SetIntField(result, errorField, -9);
+                return result;
+            }
+
             odr::FileType fileType;
             try {
                 const auto types = odr::OpenDocumentReader::types(inputPathCpp);
@@ -89,15 +318,21 @@ Java_at_tomtasche_reader_background_CoreWrapper_parseNative(JNIEnv *env, jobject
             const auto extensionC = extensionCpp.c_str();
             jstring extension = env->NewStringUTF(extensionC);
 
-            jfieldID extensionField = env->GetFieldID(resultClass, "extension",
-                                                      "Ljava/lang/String;");
-            env->SetObjectField(result, extensionField, extension);
+            env->SetObjectField(result, jni.resultExtension, extension);
+            env->DeleteLocalRef(extension);
 
             // __android_log_print(ANDROID_LOG_VERBOSE, "smn", "%s", extensionCpp.c_str());
 
+            if (isCancelled(handle)) {
+                env->SetIntField(result, errorField, -9);
+                return result;
+            }
+
             const auto file = odr::OpenDocumentReader::open(inputPathCpp);
             const auto fileCategory = odr::OpenDocumentReader::category_by_type(file.file_type());
 
+            metrics.parsed();
+
             if (!ooxml &&
                 (file.file_type() == odr::FileType::office_open_xml_document ||
                  file.file_type() == odr::FileType::office_open_xml_workbook ||
@@ -119,12 +354,37 @@ Java_at_tomtasche_reader_background_CoreWrapper_parseNative(JNIEnv *env, jobject
                 config.text_document_margin = true;
             }
 
-            html = odr::OpenDocumentReader::html(inputPathCpp, [&passwordCpp]() -> std::string {
+            if (spreadsheetRowLimit > 0 && spreadsheetColumnLimit > 0) {
+                config.spreadsheet_limit = odr::TableDimensions(spreadsheetRowLimit, spreadsheetColumnLimit);
+            }
+
+            // drop the previous translation of this session before creating a new one
+            removeSession(handle);
+
+            if (isCancelled(handle)) {
+                env->SetIntField(result, errorField, -9);
+                return result;
+            }
+
+            auto html = std::make_shared<odr::Html>(odr::OpenDocumentReader::html(inputPathCpp, [&passwordCpp]() -> std::string {
                 if (passwordCpp.has_value()) {
                     return passwordCpp.value();
                 }
                 return "";
-            }, outputPathCpp, config);
+            }, outputPathCpp, config));
+
+            metrics.written();
+
+            // the translation itself can't be interrupted, but nobody is interested in its result anymore
+            if (isCancelled(handle)) {
+                env->SetIntField(result, errorField, -9);
+                return result;
+            }
+
+            // one-off translations must not push the sessions of other documents out of the list
+            if (keepSession) {
+                storeSession(handle, html);
+            }
 
             {
                 const auto extensionCpp = odr::OpenDocumentReader::type_to_string(
@@ -132,18 +392,31 @@ Java_at_tomtasche_reader_background_CoreWrapper_parseNative(JNIEnv *env, jobject
                 const auto extensionC = extensionCpp.c_str();
                 jstring extension = env->NewStringUTF(extensionC);
 
-                jfieldID extensionField = env->GetFieldID(resultClass, "extension",
-                                                          "Ljava/lang/String;");
-                env->SetObjectField(result, extensionField, extension);
+                env->SetObjectField(result, jni.resultExtension, extension);
+                env->DeleteLocalRef(extension);
             }
 
-            for (auto &&page: html->pages()) {
-                jstring pageName = env->NewStringUTF(page.name.c_str());
-                env->CallBooleanMethod(pageNames, addMethod, pageName);
-
-                jstring pagePath = env->NewStringUTF(page.path.c_str());
-                env->CallBooleanMethod(pagePaths, addMethod, pagePath);
+            // filled in place and handed over as a whole instead of calling List.add for every page
+            const auto &pages = html->pages();
+            const auto pageCount = static_cast<jsize>(pages.size());
+            jobjectArray pageNames = env->NewObjectArray(pageCount, jni.stringClass, nullptr);
+            jobjectArray pagePaths = env->NewObjectArray(pageCount, jni.stringClass, nullptr);
+            metrics.pages = pageCount;
+            for (jsize i = 0; i < pageCount; ++i) {
+                metrics.bytesWritten += fileSize(pages[i].path);
+
+                // documents with hundreds of pages would otherwise overflow the local reference table
+                jstring pageName = env->NewStringUTF(pages[i].name.c_str());
+                env->SetObjectArrayElement(pageNames, i, pageName);
+                env->DeleteLocalRef(pageName);
+
+                jstring pagePath = env->NewStringUTF(pages[i].path.c_str());
+                env->SetObjectArrayElement(pagePaths, i, pagePath);
+                env->DeleteLocalRef(pagePath);
             }
+
+            env->SetObjectField(result, jni.resultPageNames, pageNames);
+            env->SetObjectField(result, jni.resultPagePaths, pagePaths);
         } catch (odr::UnknownFileType &) {
             env->SetIntField(result, errorField, -5);
             return result;
@@ -168,51 +441,69 @@ Java_at_tomtasche_reader_background_CoreWrapper_parseNative(JNIEnv *env, jobject
 
 JNIEXPORT jobject JNICALL
 Java_at_tomtasche_reader_background_CoreWrapper_backtranslateNative(JNIEnv *env, jobject instance,
-                                                                    jobject options,
+                                                                    jlong handle, jobject options,
                                                                     jstring htmlDiff) {
     jboolean isCopy;
 
-    jclass optionsClass = env->GetObjectClass(options);
+    jobject result = env->NewObject(jni.resultClass, jni.resultConstructor);
 
-    jclass resultClass = env->FindClass("at/tomtasche/reader/background/CoreWrapper$CoreResult");
-    jmethodID resultConstructor = env->GetMethodID(resultClass, "<init>", "()V");
-    jobject result = env->NewObject(resultClass, resultConstructor);
+    MetricsRecorder metrics(env, result);
 
-    jfieldID errorField = env->GetFieldID(resultClass, "errorCode", "I");
+    jfieldID errorField = jni.resultErrorCode;
 
-    try {
-        jfieldID outputPathPrefixField = env->GetFieldID(optionsClass, "outputPath",
-                                                         "Ljava/lang/String;");
-        jstring outputPathPrefix = (jstring) env->GetObjectField(options, outputPathPrefixField);
-
-        const auto outputPathPrefixC = env->GetStringUTFChars(outputPathPrefix, &isCopy);
-        auto outputPathPrefixCpp = std::string(outputPathPrefixC,
-                                               env->GetStringUTFLength(outputPathPrefix));
-        env->ReleaseStringUTFChars(outputPathPrefix, outputPathPrefixC);
+    const auto html = findSession(handle);
+    if (html == nullptr) {
+        // session was closed or evicted, the caller has to parse again
+        env->SetIntField(result, errorField, -8);
+        return result;
+    }
 
-        const auto htmlDiffC = env->GetStringUTFChars(htmlDiff, &isCopy);
+    try {
+        std::string outputPathCpp;
+        jint outputFd = env->GetIntField(options, jni.optionsOutputFd);
+        if (outputFd >= 0) {
+            // the core only saves to paths, the descriptor is reopened through procfs
+            outputPathCpp = "/proc/self/fd/" + std::to_string(outputFd);
+        } else {
+            jstring outputPathPrefix = (jstring) env->GetObjectField(options, jni.optionsOutputPath);
+
+            const auto outputPathPrefixC = env->GetStringUTFChars(outputPathPrefix, &isCopy);
+            auto outputPathPrefixCpp = std::string(outputPathPrefixC,
+                                                   env->GetStringUTFLength(outputPathPrefix));
+            env->ReleaseStringUTFChars(outputPathPrefix, outputPathPrefixC);
+
+            const auto extension = odr::OpenDocumentReader::type_to_string(html->file_type());
+            outputPathCpp = outputPathPrefixCpp + "." + extension;
+        }
 
-        const auto extension = odr::OpenDocumentReader::type_to_string(html->file_type());
-        const auto outputPathCpp = outputPathPrefixCpp + "." + extension;
         const char *outputPathC = outputPathCpp.c_str();
         jstring outputPath = env->NewStringUTF(outputPathC);
 
-        jfieldID outputPathField = env->GetFieldID(resultClass, "outputPath", "Ljava/lang/String;");
-        env->SetObjectField(result, outputPathField, outputPath);
+        env->SetObjectField(result, jni.resultOutputPath, outputPath);
 
-        try {
-            html->edit(htmlDiffC);
+        // without a diff the edits applied by editNative are saved
+        if (htmlDiff != nullptr) {
+            const auto htmlDiffC = env->GetStringUTFChars(htmlDiff, &isCopy);
 
-            env->ReleaseStringUTFChars(htmlDiff, htmlDiffC);
-        } catch (...) {
-            env->ReleaseStringUTFChars(htmlDiff, htmlDiffC);
+            try {
+                html->edit(htmlDiffC);
 
-            env->SetIntField(result, errorField, -6);
-            return result;
+                metrics.parsed();
+
+                env->ReleaseStringUTFChars(htmlDiff, htmlDiffC);
+            } catch (...) {
+                env->ReleaseStringUTFChars(htmlDiff, htmlDiffC);
+
+                env->SetIntField(result, errorField, -6);
+                return result;
+            }
         }
 
         try {
             html->save(outputPathCpp);
+
+            metrics.written();
+            metrics.bytesWritten = fileSize(outputPathCpp);
         } catch (...) {
             env->SetIntField(result, errorField, -7);
             return result;
@@ -226,8 +517,55 @@ Java_at_tomtasche_reader_background_CoreWrapper_backtranslateNative(JNIEnv *env,
     return result;
 }
 
+JNIEXPORT jobject JNICALL
+Java_at_tomtasche_reader_background_CoreWrapper_editNative(JNIEnv *env, jobject instance,
+                                                           jlong handle, jstring htmlDiff) {
+    jboolean isCopy;
+
+    jobject result = env->NewObject(jni.resultClass, jni.resultConstructor);
+
+    MetricsRecorder metrics(env, result);
+
+    jfieldID errorField = jni.resultErrorCode;
+
+    const auto html = findSession(handle);
+    if (html == nullptr) {
+        env->SetIntField(result, errorField, -8);
+        return result;
+    }
+
+    const auto htmlDiffC = env->GetStringUTFChars(htmlDiff, &isCopy);
+
+    try {
+        html->edit(htmlDiffC);
+
+        metrics.parsed();
+
+        env->ReleaseStringUTFChars(htmlDiff, htmlDiffC);
+    } catch (...) {
+        env->ReleaseStringUTFChars(htmlDiff, htmlDiffC);
+
+        env->SetIntField(result, errorField, -6);
+        return result;
+    }
+
+    env->SetIntField(result, errorField, 0);
+    return result;
+}
+
+JNIEXPORT void JNICALL
+Java_at_tomtasche_reader_background_CoreWrapper_cancelNative(JNIEnv *env, jobject instance,
+                                                             jlong handle) {
+    std::lock_guard<std::mutex> lock(sessionsMutex);
+
+    cancelledSessions.insert(handle);
+}
+
 JNIEXPORT void JNICALL
 Java_at_tomtasche_reader_background_CoreWrapper_closeNative(JNIEnv *env, jobject instance,
-                                                            jobject options) {
-    html.reset();
+                                                            jlong handle) {
+    removeSession(handle);
+
+    std::lock_guard<std::mutex> lock(sessionsMutex);
+    cancelledSessions.erase(handle);
 }
\ No newline at end of file
@@ -5,14 +5,29 @@
 
 extern "C" {
 
+    JNIEXPORT jint JNICALL
+    JNI_OnLoad(JavaVM *vm, void *reserved);
+
+    JNIEXPORT jlong JNICALL
+    Java_at_tomtasche_reader_background_CoreWrapper_openNative(JNIEnv *env, jobject instance);
+
+    JNIEXPORT jboolean JNICALL
+    Java_at_tomtasche_reader_background_CoreWrapper_isOpenNative(JNIEnv *env, jobject instance, jlong handle);
+
     JNIEXPORT jobject JNICALL
-    Java_at_tomtasche_reader_background_CoreWrapper_parseNative(JNIEnv *env, jobject instance, jobject options);
+    Java_at_tomtasche_reader_background_CoreWrapper_parseNative(JNIEnv *env, jobject instance, jlong handle, jobject options);
 
     JNIEXPORT jobject JNICALL
-    Java_at_tomtasche_reader_background_CoreWrapper_backtranslateNative(JNIEnv *env, jobject instance, jobject options, jstring htmlDiff);
+    Java_at_tomtasche_reader_background_CoreWrapper_backtranslateNative(JNIEnv *env, jobject instance, jlong handle, jobject options, jstring htmlDiff);
+
+    JNIEXPORT jobject JNICALL
+    Java_at_tomtasche_reader_background_CoreWrapper_editNative(JNIEnv *env, jobject instance, jlong handle, jstring htmlDiff);
+
+    JNIEXPORT void JNICALL
+    Java_at_tomtasche_reader_background_CoreWrapper_cancelNative(JNIEnv *env, jobject instance, jlong handle);
 
     JNIEXPORT void JNICALL
-    Java_at_tomtasche_reader_background_CoreWrapper_closeNative(JNIEnv *env, jobject instance, jobject options);
+    Java_at_tomtasche_reader_background_CoreWrapper_closeNative(JNIEnv *env, jobject instance, jlong handle);
 }
 
 #endif //ANDROID_CORE_WRAPPER_H
@@ -5,12 +5,18 @@ import android.net.Uri;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Comparator;
 
 import androidx.core.content.FileProvider;
 
 public class AndroidFileCache {
 
     private final static String CACHE_DIRECTORY_PREFIX = "cache.";
+    private final static String CACHE_FILE_NAME = "cached-file.tmp";
+    private final static String NAMED_DIRECTORY_NAME = "named";
+
+    // directories are reused by DocumentCacheIndex if the same document is opened again
+    private final static int MAX_CACHE_DIRECTORIES = 3;
 
     private static String providerAuthority;
 
@@ -22,7 +28,7 @@ public class AndroidFileCache {
         return providerAuthority;
     }
 
-    private static File getRootCacheDirectory(Context context) {
+    static File getRootCacheDirectory(Context context) {
         File cache = new File(context.getCacheDir(), "cache");
         if (!cache.exists()) {
             cache.mkdirs();
@@ -62,18 +68,47 @@ public class AndroidFileCache {
         return new File(getRootCacheDirectory(context), cacheFileString);
     }
 
+    /**
+     * @return true if the file was created by {@link #createCacheFile(Context)} or {@link #createCacheFile(Context, String)},
+     * as opposed to the output the loaders write next to it
+     */
+    static boolean isCacheFile(Context context, File file) {
+        File directory = file.getParentFile();
+        if (directory != null && directory.getName().equals(NAMED_DIRECTORY_NAME)) {
+            directory = directory.getParentFile();
+        } else if (!file.getName().equals(CACHE_FILE_NAME)) {
+            return false;
+        }
+
+        return directory != null && directory.getName().startsWith(CACHE_DIRECTORY_PREFIX)
+                && getRootCacheDirectory(context).equals(directory.getParentFile());
+    }
+
     public static File createCacheFile(Context context) {
         File cacheRoot = getRootCacheDirectory(context);
         File cacheDirectory = new File(cacheRoot, CACHE_DIRECTORY_PREFIX + System.currentTimeMillis());
 
         cacheDirectory.mkdirs();
 
-        return new File(cacheDirectory, "cached-file.tmp");
+        return new File(cacheDirectory, CACHE_FILE_NAME);
+    }
+
+    /**
+     * like {@link #createCacheFile(Context)}, but keeps the name so the type of the file can be told by its extension
+     */
+    public static File createCacheFile(Context context, String filename) {
+        File cacheFile = createCacheFile(context);
+
+        // in a directory of its own, the loaders write their output next to the cache file
+        File directory = new File(cacheFile.getParentFile(), NAMED_DIRECTORY_NAME);
+        directory.mkdirs();
+
+        return new File(directory, filename);
     }
 
     public static void cleanup(Context context) {
         File cache = getRootCacheDirectory(context);
-        String[] directories = cache.list((file, s) -> {
+        File[] directories = cache.listFiles((file, s) -> {
             return s.startsWith(CACHE_DIRECTORY_PREFIX);
         });
 
@@ -81,11 +116,27 @@ public class AndroidFileCache {
             return;
         }
 
-        Arrays.sort(directories);
-        // delete all but the last cache directories!
-        for (int i = 0; i < directories.length - 1; i++) {
-            String directoryName = directories[i];
-            cleanup(new File(cache, directoryName));
+        long[] lastUsed = new long[directories.length];
+        for (int i = 0; i < directories.length; i++) {
+            lastUsed[i] = directories[i].lastModified();
+        }
+
+        Integer[] order = new Integer[directories.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        // least recently used first
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastUsed[a], lastUsed[b]);
+            }
+        });
+
+        // delete all but the most recently used cache directories!
+        for (int i = 0; i < order.length - MAX_CACHE_DIRECTORIES; i++) {
+            cleanup(directories[order[i]]);
         }
     }
 
@@ -0,0 +1,163 @@
+package at.tomtasche.reader.background;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * keeps the most recently parsed documents of a loader open in the core, so reopening them or
+ * saving edits does not require translating the whole document again.
+ */
+public class CoreSessionCache {
+
+    // the native side keeps the sessions of all caches in one list, its maxSessions in CoreWrapper.cpp
+    // has to be this times the number of loaders with a cache of their own
+    private static final int MAX_SESSIONS = 4;
+
+    private final Map<String, Session> sessions;
+
+    private CoreWrapper preparedCore;
+
+    public CoreSessionCache() {
+        sessions = new LinkedHashMap<String, Session>(MAX_SESSIONS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                if (size() > MAX_SESSIONS) {
+                    eldest.getValue().core.close();
+
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the session that parsed the given input with the same options, or null if it has to be parsed again
+     */
+    public synchronized Session get(CoreWrapper.CoreOptions options) {
+        Session session = sessions.get(options.inputPath);
+        if (session == null) {
+            return null;
+        }
+
+        if (!isSameTranslation(session.options, options) || !session.core.isOpen() || !new File(session.options.inputPath).exists()) {
+            remove(options.inputPath);
+
+            return null;
+        }
+
+        // the pages might have been removed by AndroidFileCache.cleanup in the meanwhile
+        for (String pagePath : session.result.pagePaths) {
+            if (!new File(pagePath).exists()) {
+                remove(options.inputPath);
+
+                return null;
+            }
+        }
+
+        return session;
+    }
+
+    public synchronized Session get(String inputPath) {
+        Session session = sessions.get(inputPath);
+        if (session == null) {
+            return null;
+        }
+
+        if (!session.core.isOpen() || !new File(inputPath).exists()) {
+            remove(inputPath);
+
+            return null;
+        }
+
+        return session;
+    }
+
+    public synchronized void put(Session session) {
+        Session previousSession = sessions.put(session.options.inputPath, session);
+        if (previousSession != null && previousSession.core != session.core) {
+            previousSession.core.close();
+        }
+    }
+
+    public synchronized void remove(String inputPath) {
+        Session session = sessions.remove(inputPath);
+        if (session != null) {
+            session.core.close();
+        }
+    }
+
+    /**
+     * loads the native library and opens a session ahead of time, to be picked up by {@link #newCore()}
+     */
+    public void prepare() {
+        synchronized (this) {
+            if (preparedCore != null) {
+                return;
+            }
+        }
+
+        CoreWrapper core = new CoreWrapper();
+        core.initialize();
+
+        synchronized (this) {
+            if (preparedCore == null) {
+                preparedCore = core;
+
+                return;
+            }
+        }
+
+        core.close();
+    }
+
+    public CoreWrapper newCore() {
+        synchronized (this) {
+            if (preparedCore != null) {
+                CoreWrapper core = preparedCore;
+                preparedCore = null;
+
+                return core;
+            }
+        }
+
+        CoreWrapper core = new CoreWrapper();
+        core.initialize();
+
+        return core;
+    }
+
+    public synchronized void close() {
+        for (Session session : sessions.values()) {
+            session.core.close();
+        }
+
+        sessions.clear();
+
+        if (preparedCore != null) {
+            preparedCore.close();
+            preparedCore = null;
+        }
+    }
+
+    private static boolean isSameTranslation(CoreWrapper.CoreOptions a, CoreWrapper.CoreOptions b) {
+        return a.ooxml == b.ooxml && a.txt == b.txt && a.editable == b.editable && a.paging == b.paging
+                && a.spreadsheetRowLimit == b.spreadsheetRowLimit && a.spreadsheetColumnLimit == b.spreadsheetColumnLimit
+                && (a.password == null ? b.password == null : a.password.equals(b.password));
+    }
+
+    public static class Session {
+
+        public final CoreWrapper core;
+        public final CoreWrapper.CoreOptions options;
+        public final CoreWrapper.CoreResult result;
+
+        public Session(CoreWrapper core, CoreWrapper.CoreOptions options, CoreWrapper.CoreResult result) {
+            this.core = core;
+            this.options = options;
+            this.result = result;
+        }
+    }
+}
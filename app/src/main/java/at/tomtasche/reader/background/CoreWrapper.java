@@ -1,16 +1,29 @@
 package at.tomtasche.reader.background;
 
-import java.util.LinkedList;
-import java.util.List;
-
 public class CoreWrapper {
 
+    private long sessionHandle;
+
     public void initialize() {
         System.loadLibrary("odr-core");
+
+        sessionHandle = openNative();
+    }
+
+    private native long openNative();
+
+    /**
+     * the native side only keeps a limited number of sessions alive, so a session might be evicted
+     * after other documents were parsed in the meanwhile.
+     */
+    public boolean isOpen() {
+        return isOpenNative(sessionHandle);
     }
 
+    private native boolean isOpenNative(long handle);
+
     public CoreResult parse(CoreOptions options) {
-        CoreResult result = parseNative(options);
+        CoreResult result = parseNative(sessionHandle, options);
 
         switch (result.errorCode) {
             case 0:
@@ -36,6 +49,10 @@ public class CoreWrapper {
                 result.exception = new CoreUnexpectedFormatException();
                 break;
 
+            case -9:
+                result.exception = new CoreCanceledException();
+                break;
+
             default:
                 result.exception = new CoreUnexpectedErrorCodeException();
         }
@@ -43,40 +60,72 @@ public class CoreWrapper {
         return result;
     }
 
-    private native CoreResult parseNative(CoreOptions options);
+    private native CoreResult parseNative(long handle, CoreOptions options);
 
+    /**
+     * @param htmlDiff null to save the edits applied by {@link #edit(String)} without applying another one
+     */
     public CoreResult backtranslate(CoreOptions options, String htmlDiff) {
-        CoreResult result = backtranslateNative(options, htmlDiff);
+        CoreResult result = backtranslateNative(sessionHandle, options, htmlDiff);
+        setEditException(result);
+
+        return result;
+    }
+
+    /**
+     * applies the diff to the document in memory without saving it, see {@link #backtranslate(CoreOptions, String)}
+     */
+    public CoreResult edit(String htmlDiff) {
+        CoreResult result = editNative(sessionHandle, htmlDiff);
+        setEditException(result);
+
+        return result;
+    }
 
+    private void setEditException(CoreResult result) {
         switch (result.errorCode) {
             case 0:
                 break;
 
             case -3:
                 result.exception = new CoreUnknownErrorException();
+                break;
 
             case -6:
                 result.exception = new CoreCouldNotEditException();
+                break;
 
             case -7:
                 result.exception = new CoreCouldNotSaveException();
+                break;
+
+            case -8:
+                result.exception = new CoreSessionClosedException();
+                break;
 
             default:
                 result.exception = new CoreUnexpectedErrorCodeException();
         }
+    }
 
-        return result;
+    private native CoreResult backtranslateNative(long handle, CoreOptions options, String htmlDiff);
+
+    private native CoreResult editNative(long handle, String htmlDiff);
+
+    /**
+     * makes a running or upcoming parse of this session stop as soon as possible. safe to call from any thread
+     */
+    public void cancel() {
+        cancelNative(sessionHandle);
     }
 
-    private native CoreResult backtranslateNative(CoreOptions options, String htmlDiff);
+    private native void cancelNative(long handle);
 
     public void close() {
-        CoreOptions options = new CoreOptions();
-
-        closeNative(options);
+        closeNative(sessionHandle);
     }
 
-    private native void closeNative(CoreOptions options);
+    private native void closeNative(long handle);
 
     public static class CoreOptions {
 
@@ -91,6 +140,16 @@ public class CoreWrapper {
 
         public String inputPath;
         public String outputPath;
+
+        // backtranslate writes the document to this descriptor instead of a file next to outputPath if set
+        public int outputFd = -1;
+
+        // cuts off every sheet after the given number of rows and columns, 0 keeps the defaults of the core
+        public int spreadsheetRowLimit;
+        public int spreadsheetColumnLimit;
+
+        // false for one-off translations like previews, which are closed right away and never edited
+        public boolean keepSession = true;
     }
 
     public static class CoreResult {
@@ -99,12 +158,35 @@ public class CoreWrapper {
 
         public Exception exception;
 
-        public List<String> pageNames = new LinkedList<>();
-        public List<String> pagePaths = new LinkedList<>();
+        public String[] pageNames = new String[0];
+        public String[] pagePaths = new String[0];
 
         public String outputPath;
 
         public String extension;
+
+        // filled by every native call, left empty for results that were not produced by the core
+        public CoreMetrics metrics = new CoreMetrics();
+    }
+
+    public static class CoreMetrics {
+
+        // parse: detecting and opening the document, backtranslate: applying the diff
+        public long parseMillis;
+        // parse: translating and writing the pages, backtranslate: saving the document
+        public long writeMillis;
+
+        public long bytesWritten;
+        public int pages;
+
+        // growth of the peak resident set size of the whole process during the call
+        public long peakRssDeltaKb;
+
+        @Override
+        public String toString() {
+            return "parse " + parseMillis + " ms, write " + writeMillis + " ms, " + bytesWritten / 1024 + " KB, "
+                    + pages + " pages, peak RSS +" + peakRssDeltaKb + " KB";
+        }
     }
 
     public class CoreCouldNotOpenException extends RuntimeException {}
@@ -123,4 +205,8 @@ public class CoreWrapper {
 
     public class CoreCouldNotSaveException extends RuntimeException {}
 
+    public class CoreSessionClosedException extends RuntimeException {}
+
+    public class CoreCanceledException extends RuntimeException {}
+
 }
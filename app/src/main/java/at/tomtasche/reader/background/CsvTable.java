@@ -0,0 +1,592 @@
+package at.tomtasche.reader.background;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * shows CSV files that are too big to be parsed by the page. the offsets of all rows are indexed once,
+ * the page then asks for the rows around the viewport like it does for {@link SpreadsheetWindow}.
+ * neither the file nor the index is ever read into the heap as a whole, both are mapped. sorting only
+ * keeps a key per row, fields are compared where they are mapped.
+ * <p>
+ * the first row is used as header. the columns are typed by looking at the first rows, numbers are
+ * aligned and sorted as such.
+ */
+public class CsvTable implements TableWindow {
+
+    private static final String INDEX_NAME = "csv.index";
+
+    // smaller files are parsed by the page in reasonable time
+    private static final long MIN_SIZE = 1024 * 1024;
+
+    private static final byte[] DELIMITERS = {',', ';', '\t', '|'};
+    private static final int SAMPLE_ROWS = 1000;
+    // keep in sync with MAX_ROWS in spreadsheet-window.html
+    private static final int MAX_ROWS_PER_REQUEST = 500;
+    // sorting takes 16 bytes per row on the heap
+    private static final int MAX_SORT_ROWS = 2 * 1000 * 1000;
+
+    private static final Pattern NUMBER = Pattern.compile("[-+]?(\\d+\\.?\\d*|\\.\\d+)([eE][-+]?\\d+)?");
+
+    private final ByteBuffer buffer;
+    // offsets of the header and all rows, followed by the end of the file
+    private final LongBuffer offsets;
+    private final byte delimiter;
+    private final List<String> columnNames;
+    private final boolean[] numericColumns;
+
+    // position of the rows after sorting, null while they are in the order of the file
+    private volatile int[] order;
+    private volatile int sortColumn = -1;
+    private volatile boolean sortAscending;
+
+    private CsvTable(ByteBuffer buffer, LongBuffer offsets, byte delimiter) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+        this.delimiter = delimiter;
+
+        columnNames = readRow(0);
+
+        int columnCount = columnNames.size();
+        int sampleCount = Math.min(getRowCount(), SAMPLE_ROWS);
+
+        List<List<String>> sample = new ArrayList<>(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            List<String> row = readRow(i + 1);
+            sample.add(row);
+
+            columnCount = Math.max(columnCount, row.size());
+        }
+
+        numericColumns = new boolean[columnCount];
+        for (int column = 0; column < columnCount; column++) {
+            boolean hasValue = false;
+            boolean isNumeric = true;
+            for (List<String> row : sample) {
+                if (column >= row.size() || row.get(column).trim().isEmpty()) {
+                    continue;
+                }
+
+                hasValue = true;
+                if (!NUMBER.matcher(row.get(column).trim()).matches()) {
+                    isNumeric = false;
+                    break;
+                }
+            }
+
+            numericColumns[column] = hasValue && isNumeric;
+        }
+    }
+
+    private static File getIndexFile(File cacheFile) {
+        return new File(AndroidFileCache.getCacheDirectory(cacheFile), INDEX_NAME);
+    }
+
+    // the index is outdated if the document was downloaded again since
+    private static boolean isIndexed(File cacheFile, File indexFile) {
+        return indexFile.exists() && cacheFile.exists() && indexFile.lastModified() >= cacheFile.lastModified();
+    }
+
+    /**
+     * indexes the rows of the file if it is big enough for the page to stall on it
+     *
+     * @return true if the file can be opened as table now
+     */
+    public static boolean index(File cacheFile) throws IOException {
+        File indexFile = getIndexFile(cacheFile);
+        if (isIndexed(cacheFile, indexFile)) {
+            return true;
+        }
+
+        File tempIndexFile = new File(indexFile.getPath() + ".tmp");
+
+        int rowCount = 0;
+        try (FileChannel channel = new FileInputStream(cacheFile).getChannel()) {
+            long size = channel.size();
+            if (size < MIN_SIZE || size > Integer.MAX_VALUE) {
+                return false;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int start = getStart(buffer);
+            if (detectDelimiter(buffer, start) == 0) {
+                return false;
+            }
+
+            try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempIndexFile)))) {
+                int limit = buffer.limit();
+                int rowStart = start;
+                boolean quoted = false;
+                for (int i = start; i < limit; i++) {
+                    byte b = buffer.get(i);
+                    if (b == '"') {
+                        // escaped quotes toggle twice, which leaves the state as it was
+                        quoted = !quoted;
+                    } else if (b == '\n' && !quoted) {
+                        index.writeLong(rowStart);
+                        rowCount++;
+
+                        rowStart = i + 1;
+                    }
+                }
+
+                if (rowStart < limit) {
+                    index.writeLong(rowStart);
+                    rowCount++;
+                }
+
+                // the last row ends at the end of the file
+                index.writeLong(limit);
+            }
+        }
+
+        // a header on its own is no table
+        if (rowCount < 2 || !tempIndexFile.renameTo(indexFile)) {
+            tempIndexFile.delete();
+
+            return false;
+        }
+
+        indexFile.setLastModified(Math.max(System.currentTimeMillis(), cacheFile.lastModified()));
+
+        return true;
+    }
+
+    /**
+     * @return null if the file was not indexed
+     */
+    public static CsvTable open(File cacheFile) {
+        File indexFile = getIndexFile(cacheFile);
+        if (!isIndexed(cacheFile, indexFile)) {
+            return null;
+        }
+
+        try (FileChannel channel = new FileInputStream(cacheFile).getChannel();
+             FileChannel indexChannel = new FileInputStream(indexFile).getChannel()) {
+            // both stay valid after the channels are closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            LongBuffer offsets = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size()).asLongBuffer();
+
+            byte delimiter = detectDelimiter(buffer, getStart(buffer));
+            if (delimiter == 0) {
+                return null;
+            }
+
+            return new CsvTable(buffer, offsets, delimiter);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // skips the byte order mark some applications put in front of UTF-8
+    private static int getStart(ByteBuffer buffer) {
+        if (buffer.limit() >= 3 && buffer.get(0) == (byte) 0xEF && buffer.get(1) == (byte) 0xBB && buffer.get(2) == (byte) 0xBF) {
+            return 3;
+        }
+
+        return 0;
+    }
+
+    // the header tells the delimiter apart best, it rarely contains anything but names
+    private static byte detectDelimiter(ByteBuffer buffer, int start) {
+        int[] counts = new int[DELIMITERS.length];
+
+        boolean quoted = false;
+        for (int i = start; i < buffer.limit(); i++) {
+            byte b = buffer.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == '\n' && !quoted) {
+                break;
+            } else if (!quoted) {
+                for (int j = 0; j < DELIMITERS.length; j++) {
+                    if (b == DELIMITERS[j]) {
+                        counts[j]++;
+                    }
+                }
+            }
+        }
+
+        byte delimiter = 0;
+        int maxCount = 0;
+        for (int j = 0; j < DELIMITERS.length; j++) {
+            if (counts[j] > maxCount) {
+                delimiter = DELIMITERS[j];
+                maxCount = counts[j];
+            }
+        }
+
+        return delimiter;
+    }
+
+    private List<String> readRow(int index) {
+        int start = (int) offsets.get(index);
+        int end = (int) offsets.get(index + 1);
+
+        List<String> fields = new ArrayList<>();
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+
+        boolean quoted = false;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (quoted) {
+                if (b != '"') {
+                    field.write(b);
+                } else if (i + 1 < end && buffer.get(i + 1) == '"') {
+                    field.write(b);
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (b == '"') {
+                quoted = true;
+            } else if (b == delimiter) {
+                fields.add(decode(field));
+                field.reset();
+            } else if (b != '\r' && b != '\n') {
+                field.write(b);
+            }
+        }
+
+        fields.add(decode(field));
+
+        return fields;
+    }
+
+    private static String decode(ByteArrayOutputStream field) {
+        return new String(field.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int getRowCount() {
+        // neither the header nor the end of the file is a row
+        return offsets.limit() - 2;
+    }
+
+    @Override
+    public String getRows(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(Math.min(getRowCount(), to), from + MAX_ROWS_PER_REQUEST);
+
+        int[] order = this.order;
+
+        StringBuilder html = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            int row = order != null ? order[i] : i;
+
+            html.append("<tr>");
+
+            List<String> fields = readRow(row + 1);
+            for (int column = 0; column < Math.max(fields.size(), numericColumns.length); column++) {
+                boolean isNumeric = column < numericColumns.length && numericColumns[column];
+                html.append(isNumeric ? "<td class=\"odr-number\">" : "<td>");
+                if (column < fields.size()) {
+                    appendEscaped(html, fields.get(column));
+                }
+                html.append("</td>");
+            }
+
+            html.append("</tr>");
+        }
+
+        return html.toString();
+    }
+
+    /**
+     * @return the HTML of the header row, every cell carries its column in data-column
+     */
+    public String getHeader() {
+        StringBuilder html = new StringBuilder("<tr>");
+        for (int column = 0; column < numericColumns.length; column++) {
+            html.append("<th data-column=\"").append(column).append("\" class=\"");
+            html.append(numericColumns[column] ? "odr-number" : "odr-text");
+            if (column == sortColumn) {
+                html.append(sortAscending ? " odr-ascending" : " odr-descending");
+            }
+            html.append("\">");
+
+            if (column < columnNames.size()) {
+                appendEscaped(html, columnNames.get(column));
+            }
+
+            html.append("</th>");
+        }
+        html.append("</tr>");
+
+        return html.toString();
+    }
+
+    /**
+     * orders the rows by the given column. takes a while for big files, so it must not be called on the
+     * main thread. rows requested in the meantime are still served in the previous order.
+     *
+     * @return false if the file has too many rows to be sorted
+     */
+    public synchronized boolean sort(int column, boolean ascending) {
+        if (column < 0 || column >= numericColumns.length) {
+            return false;
+        }
+
+        int rowCount = getRowCount();
+        if (rowCount > MAX_SORT_ROWS) {
+            return false;
+        }
+
+        int[] rows = new int[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            rows[i] = i;
+        }
+
+        // the fields are compared where they are mapped, only their numbers or positions are kept
+        RowComparator comparator;
+        if (numericColumns[column]) {
+            double[] keys = new double[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                long field = findField(i + 1, column);
+                // empty cells and the odd text in a numeric column go last, no matter the direction
+                double key = parseNumber(getFieldStart(field), getFieldEnd(field));
+                keys[i] = ascending ? key : -key;
+            }
+
+            comparator = (a, b) -> Double.compare(keys[a], keys[b]);
+        } else {
+            long[] keys = new long[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                keys[i] = findField(i + 1, column);
+            }
+
+            comparator = (a, b) -> ascending ? compareText(keys[a], keys[b]) : compareText(keys[b], keys[a]);
+        }
+
+        // stable, rows with the same value keep the order of the file
+        mergeSort(rows, new int[rowCount], 0, rowCount, comparator);
+
+        this.order = rows;
+        sortColumn = column;
+        sortAscending = ascending;
+
+        return true;
+    }
+
+    // start and end of the field packed into one long, without the quotes around it
+    private long findField(int index, int column) {
+        int start = (int) offsets.get(index);
+        int end = (int) offsets.get(index + 1);
+        while (end > start && (buffer.get(end - 1) == '\n' || buffer.get(end - 1) == '\r')) {
+            end--;
+        }
+
+        int fieldStart = start;
+        int currentColumn = 0;
+        boolean quoted = false;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (b == delimiter && !quoted) {
+                if (currentColumn == column) {
+                    return packField(fieldStart, i);
+                }
+
+                currentColumn++;
+                fieldStart = i + 1;
+            }
+        }
+
+        if (currentColumn == column) {
+            return packField(fieldStart, end);
+        }
+
+        // rows with fewer fields are treated as if the missing ones were empty
+        return packField(end, end);
+    }
+
+    private long packField(int start, int end) {
+        if (end - start >= 2 && buffer.get(start) == '"' && buffer.get(end - 1) == '"') {
+            start++;
+            end--;
+        }
+
+        return ((long) start << 32) | (end & 0xFFFFFFFFL);
+    }
+
+    private static int getFieldStart(long field) {
+        return (int) (field >>> 32);
+    }
+
+    private static int getFieldEnd(long field) {
+        return (int) field;
+    }
+
+    // same as compareToIgnoreCase for ASCII, other characters are compared by their UTF-8 bytes
+    private int compareText(long a, long b) {
+        int aStart = getFieldStart(a);
+        int aEnd = getFieldEnd(a);
+        int bStart = getFieldStart(b);
+        int bEnd = getFieldEnd(b);
+
+        int length = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < length; i++) {
+            int aByte = toLowerCase(buffer.get(aStart + i) & 0xFF);
+            int bByte = toLowerCase(buffer.get(bStart + i) & 0xFF);
+            if (aByte != bByte) {
+                return aByte - bByte;
+            }
+        }
+
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    private static int toLowerCase(int b) {
+        if (b >= 'A' && b <= 'Z') {
+            return b + ('a' - 'A');
+        }
+
+        return b;
+    }
+
+    // parses what NUMBER matches, surrounded by whitespace. NaN for anything else
+    private double parseNumber(int start, int end) {
+        while (start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        while (end > start && buffer.get(end - 1) == ' ') {
+            end--;
+        }
+
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                // digits beyond what a long holds don't change the order noticeably
+                if (mantissa < Long.MAX_VALUE / 10 - 9) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (point) {
+                        exponent--;
+                    }
+                } else if (!point) {
+                    exponent++;
+                }
+
+                digits++;
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+
+        if (digits == 0) {
+            return Double.NaN;
+        }
+
+        if (i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            i++;
+
+            boolean negativeExponent = false;
+            if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negativeExponent = buffer.get(i) == '-';
+                i++;
+            }
+
+            int exponentDigits = 0;
+            int explicitExponent = 0;
+            for (; i < end && buffer.get(i) >= '0' && buffer.get(i) <= '9'; i++) {
+                explicitExponent = Math.min(explicitExponent * 10 + (buffer.get(i) - '0'), 10000);
+                exponentDigits++;
+            }
+
+            if (exponentDigits == 0) {
+                return Double.NaN;
+            }
+
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        if (i != end) {
+            return Double.NaN;
+        }
+
+        // dividing by an exact power of ten is more precise than multiplying by an inexact fraction
+        double value = exponent < 0 ? mantissa / Math.pow(10, -exponent) : mantissa * Math.pow(10, exponent);
+
+        return negative ? -value : value;
+    }
+
+    private static void mergeSort(int[] rows, int[] temp, int from, int to, RowComparator comparator) {
+        if (to - from < 2) {
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        mergeSort(rows, temp, from, middle, comparator);
+        mergeSort(rows, temp, middle, to, comparator);
+
+        // already in order, which is common for columns like IDs or dates
+        if (comparator.compare(rows[middle - 1], rows[middle]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(rows, from, temp, from, to - from);
+
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && comparator.compare(temp[left], temp[right]) <= 0)) {
+                rows[i] = temp[left++];
+            } else {
+                rows[i] = temp[right++];
+            }
+        }
+    }
+
+    private interface RowComparator {
+
+        int compare(int a, int b);
+    }
+
+    static void appendEscaped(StringBuilder html, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    html.append("&amp;");
+                    break;
+                case '<':
+                    html.append("&lt;");
+                    break;
+                case '>':
+                    html.append("&gt;");
+                    break;
+                case '"':
+                    html.append("&quot;");
+                    break;
+                default:
+                    html.append(c);
+            }
+        }
+    }
+}
@@ -9,6 +9,8 @@ import java.io.File;
 
 public class DocLoader extends FileLoader {
 
+    private wvWare preparedConverter;
+
     public DocLoader(Context context) {
         super(context, LoaderType.DOC);
     }
@@ -18,6 +20,29 @@ public class DocLoader extends FileLoader {
         return options.fileType.startsWith("application/msword");
     }
 
+    // the converter is created while holding the lock, so newConverter waits for it instead of
+    // extracting the same files at the same time
+    @Override
+    public synchronized void prepare(Options options) {
+        if (preparedConverter != null) {
+            return;
+        }
+
+        // the converter extracts its data files when it's created for the first time
+        preparedConverter = new wvWare(context);
+    }
+
+    private synchronized wvWare newConverter() {
+        wvWare converter = preparedConverter;
+        preparedConverter = null;
+
+        if (converter == null) {
+            converter = new wvWare(context);
+        }
+
+        return converter;
+    }
+
     @Override
     public void loadSync(Options options) {
         final Result result = new Result();
@@ -28,12 +53,20 @@ public class DocLoader extends FileLoader {
             File cacheFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
             File cacheDirectory = AndroidFileCache.getCacheDirectory(cacheFile);
 
-            wvWare docConverter = new wvWare(context).setInputDOC(cacheFile);
+            wvWare docConverter = newConverter().setInputDOC(cacheFile);
             if (options.password != null) {
                 docConverter.setPassword(options.password);
             }
 
+            throwIfCanceled(options);
+
+            // wvWare offers no way to abort a running conversion, at least its result is dropped
             File output = docConverter.convertToHTML();
+            if (isCanceled(options)) {
+                output.delete();
+
+                throwIfCanceled(options);
+            }
 
             File htmlFile = new File(cacheDirectory, "doc.html");
             StreamUtil.copy(output, htmlFile);
@@ -0,0 +1,232 @@
+package at.tomtasche.reader.background;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+
+/**
+ * remembers which cache file holds a copy of which URI, so documents that did not change since they
+ * were opened last time don't have to be copied again.
+ */
+public class DocumentCacheIndex {
+
+    private static final String INDEX_FILENAME = "index.json";
+
+    private static final int SAMPLE_SIZE = 16 * 1024;
+
+    private static File getIndexFile(Context context) {
+        return new File(AndroidFileCache.getRootCacheDirectory(context), INDEX_FILENAME);
+    }
+
+    /**
+     * @return the cache file holding an unchanged copy of the given URI or null if it has to be copied
+     */
+    public static synchronized File findCachedFile(Context context, Uri uri, Fingerprint fingerprint) {
+        if (fingerprint == null) {
+            return null;
+        }
+
+        try {
+            JSONObject index = readIndex(context);
+
+            JSONObject entry = index.optJSONObject(uri.toString());
+            if (entry == null) {
+                return null;
+            }
+
+            File directory = new File(AndroidFileCache.getRootCacheDirectory(context), entry.getString("directory"));
+            File cachedFile = new File(directory, entry.getString("file"));
+            if (!cachedFile.exists() || cachedFile.length() != fingerprint.size) {
+                return null;
+            }
+
+            if (entry.getLong("size") != fingerprint.size || entry.getLong("lastModified") != fingerprint.lastModified || !entry.getString("hash").equals(fingerprint.hash)) {
+                return null;
+            }
+
+            // AndroidFileCache.cleanup keeps the most recently used directories
+            directory.setLastModified(System.currentTimeMillis());
+
+            return cachedFile;
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    public static synchronized void put(Context context, Uri uri, Fingerprint fingerprint, File cachedFile) throws IOException {
+        if (fingerprint == null) {
+            return;
+        }
+
+        File root = AndroidFileCache.getRootCacheDirectory(context);
+
+        try {
+            JSONObject index;
+            try {
+                index = readIndex(context);
+            } catch (IOException | JSONException e) {
+                index = new JSONObject();
+            }
+
+            // drop entries of directories that were removed by AndroidFileCache.cleanup in the meanwhile
+            for (Iterator<String> iterator = index.keys(); iterator.hasNext(); ) {
+                JSONObject entry = index.optJSONObject(iterator.next());
+                if (entry == null || !new File(root, entry.optString("directory")).exists()) {
+                    iterator.remove();
+                }
+            }
+
+            String hash;
+            try (FileInputStream in = new FileInputStream(cachedFile)) {
+                hash = sampleHash(in.getChannel(), cachedFile.length());
+            }
+
+            JSONObject entry = new JSONObject();
+            entry.put("directory", AndroidFileCache.getCacheDirectory(cachedFile).getName());
+            entry.put("file", cachedFile.getName());
+            entry.put("size", fingerprint.size);
+            entry.put("lastModified", fingerprint.lastModified);
+            entry.put("hash", hash);
+
+            index.put(uri.toString(), entry);
+
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(getIndexFile(context)), StreamUtil.ENCODING)) {
+                writer.write(index.toString());
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static JSONObject readIndex(Context context) throws IOException, JSONException {
+        File indexFile = getIndexFile(context);
+        if (!indexFile.exists()) {
+            return new JSONObject();
+        }
+
+        try (Reader reader = new InputStreamReader(new FileInputStream(indexFile), StreamUtil.ENCODING)) {
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[4096];
+            int length;
+            while ((length = reader.read(buffer)) > 0) {
+                builder.append(buffer, 0, length);
+            }
+
+            return new JSONObject(builder.toString());
+        }
+    }
+
+    // hashes the beginning, middle and end of the file, which catches most modifications without reading all of it
+    private static String sampleHash(FileChannel channel, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+        long[] offsets = {0, Math.max(0, size / 2 - SAMPLE_SIZE / 2), Math.max(0, size - SAMPLE_SIZE)};
+        for (long offset : offsets) {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, offset + buffer.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+
+            digest.update(buffer.array(), 0, buffer.position());
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+
+        return hash.toString();
+    }
+
+    public static class Fingerprint {
+
+        public final long size;
+        public final long lastModified;
+        public final String hash;
+
+        private Fingerprint(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        /**
+         * @return null if the provider does not expose enough information to detect changes reliably
+         */
+        public static Fingerprint of(Context context, Uri uri) {
+            long size = -1;
+            long lastModified = -1;
+
+            if ("file".equals(uri.getScheme())) {
+                File file = new File(uri.getPath());
+                size = file.length();
+                lastModified = file.lastModified();
+            } else {
+                try (Cursor cursor = context.getContentResolver().query(uri, null, null, null, null)) {
+                    if (cursor != null && cursor.moveToFirst()) {
+                        int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                        if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) {
+                            size = cursor.getLong(sizeIndex);
+                        }
+
+                        int lastModifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                        if (lastModifiedIndex >= 0 && !cursor.isNull(lastModifiedIndex)) {
+                            lastModified = cursor.getLong(lastModifiedIndex);
+                        }
+                    }
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+
+            // the samples alone miss edits that keep the size, e.g. a changed digit in the middle of a CSV
+            if (size <= 0 || lastModified <= 0) {
+                return null;
+            }
+
+            // pipes are not seekable, sampling fails for them and the document is copied every time
+            try (ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r")) {
+                if (descriptor == null) {
+                    return null;
+                }
+
+                try (FileInputStream in = new FileInputStream(descriptor.getFileDescriptor())) {
+                    String hash = sampleHash(in.getChannel(), size);
+
+                    return new Fingerprint(size, lastModified, hash);
+                }
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package at.tomtasche.reader.background;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * keeps the edits of a document that were not saved yet next to its cached copy, so they survive the
+ * app being killed. every diff generated by the page contains all edits since the document was
+ * opened, so only the last one that was written completely is of interest.
+ */
+public class EditJournal {
+
+    private static final String SUFFIX = ".journal";
+
+    // older diffs are dropped once the journal grows beyond this
+    private static final long COMPACT_SIZE = 256 * 1024;
+
+    private static File getJournalFile(Context context, FileLoader.Options options) {
+        File cacheFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
+        if (cacheFile == null) {
+            return null;
+        }
+
+        // named after the copy and not its directory, a recovered document is cached next to the original
+        return new File(AndroidFileCache.getCacheDirectory(cacheFile), cacheFile.getName() + SUFFIX);
+    }
+
+    public static boolean exists(Context context, FileLoader.Options options) {
+        File journalFile = getJournalFile(context, options);
+
+        return journalFile != null && journalFile.length() > 0;
+    }
+
+    /**
+     * appends the diff, a diff that was only partially written because the app was killed is ignored
+     * by {@link #read(Context, FileLoader.Options)}
+     */
+    public static synchronized void append(Context context, FileLoader.Options options, String htmlDiff) throws IOException {
+        File journalFile = getJournalFile(context, options);
+        if (journalFile == null) {
+            return;
+        }
+
+        byte[] diff = htmlDiff.getBytes(StandardCharsets.UTF_8);
+
+        if (journalFile.length() + diff.length > COMPACT_SIZE) {
+            // the new diff replaces all older ones anyway
+            File tempFile = new File(journalFile.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                writeRecord(out, diff);
+                out.getFD().sync();
+            }
+
+            if (!tempFile.renameTo(journalFile)) {
+                throw new IOException("could not replace journal");
+            }
+
+            return;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            writeRecord(out, diff);
+            out.getFD().sync();
+        }
+    }
+
+    private static void writeRecord(FileOutputStream out, byte[] diff) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(diff);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(diff.length);
+        data.writeLong(crc.getValue());
+        data.write(diff);
+        data.flush();
+    }
+
+    /**
+     * @return the last diff that was written completely or null if there is none
+     */
+    public static synchronized String read(Context context, FileLoader.Options options) {
+        File journalFile = getJournalFile(context, options);
+        if (journalFile == null || !journalFile.exists()) {
+            return null;
+        }
+
+        byte[] lastDiff = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                int length = in.readInt();
+                long checksum = in.readLong();
+                if (length < 0 || length > journalFile.length()) {
+                    break;
+                }
+
+                byte[] diff = new byte[length];
+                in.readFully(diff);
+
+                CRC32 crc = new CRC32();
+                crc.update(diff);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+
+                lastDiff = diff;
+            }
+        } catch (EOFException e) {
+            // the last record was cut off, the ones before are fine
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (lastDiff == null) {
+            return null;
+        }
+
+        return new String(lastDiff, StandardCharsets.UTF_8);
+    }
+
+    public static synchronized void clear(Context context, FileLoader.Options options) {
+        File journalFile = getJournalFile(context, options);
+        if (journalFile != null) {
+            journalFile.delete();
+        }
+    }
+
+    /**
+     * @return true if the diff doesn't contain any edits, e.g. because the document was only opened for editing
+     */
+    public static boolean isEmpty(String htmlDiff) {
+        if (htmlDiff == null) {
+            return true;
+        }
+
+        try {
+            return isEmpty(new JSONTokener(htmlDiff).nextValue());
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    private static boolean isEmpty(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            for (Iterator<String> iterator = object.keys(); iterator.hasNext(); ) {
+                if (!isEmpty(object.opt(iterator.next()))) {
+                    return false;
+                }
+            }
+
+            return true;
+        } else if (value instanceof JSONArray) {
+            return ((JSONArray) value).length() == 0;
+        }
+
+        return value == null || value == JSONObject.NULL;
+    }
+}
@@ -2,15 +2,20 @@ package at.tomtasche.reader.background;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.OperationCanceledException;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 
 import com.google.firebase.analytics.FirebaseAnalytics;
 
 import java.io.File;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import at.tomtasche.reader.nonfree.AnalyticsManager;
 import at.tomtasche.reader.nonfree.CrashManager;
@@ -27,6 +32,9 @@ public abstract class FileLoader {
         METADATA
     }
 
+    private static final long SLOW_CORE_MILLIS = 10 * 1000;
+    private static final long SLOW_CORE_RSS_KB = 256 * 1024;
+
     Context context;
     LoaderType type;
 
@@ -63,20 +71,99 @@ public abstract class FileLoader {
             throw new RuntimeException("not initialized");
         }
 
-        loading = true;
-
-        backgroundHandler.post(new Runnable() {
+        // posted with this loader as token, so cancelPending can drop it again
+        backgroundHandler.postAtTime(new Runnable() {
             @Override
             public void run() {
+                if (isCanceled(options)) {
+                    return;
+                }
+
+                loading = true;
+
+                beginTrace(options, type.name());
+
                 loadSync(options);
 
+                endTrace(options, type.name());
+
                 loading = false;
             }
-        });
+        }, this, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * drops loads that are still queued, e.g. because the user opened another document in the meanwhile.
+     * a load that is already running is not interrupted.
+     */
+    public void cancelPending() {
+        backgroundHandler.removeCallbacksAndMessages(this);
     }
 
     abstract void loadSync(Options options);
 
+    /**
+     * called ahead of {@link #loadAsync(Options)} while the document is still being copied, with
+     * {@link Options#fileType} sniffed from its header. does expensive setup that does not depend on the content.
+     */
+    public void prepare(Options options) {
+    }
+
+    static boolean isCanceled(Options options) {
+        return options.cancellationSignal != null && options.cancellationSignal.isCanceled();
+    }
+
+    static void throwIfCanceled(Options options) {
+        if (options.cancellationSignal != null) {
+            options.cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    /**
+     * parses with the given core, which stops as soon as the load is canceled
+     */
+    CoreWrapper.CoreResult parse(CoreWrapper core, CoreWrapper.CoreOptions coreOptions, Options options) {
+        CancellationSignal cancellationSignal = options.cancellationSignal;
+        if (cancellationSignal != null) {
+            // called right away if the load was canceled already
+            cancellationSignal.setOnCancelListener(core::cancel);
+        }
+
+        CoreWrapper.CoreResult result;
+        try {
+            result = core.parse(coreOptions);
+        } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
+        }
+
+        reportCoreMetrics("core_parse", options, result.metrics);
+
+        return result;
+    }
+
+    /**
+     * logs how long the core took and how much memory it needed, slow documents are reported separately to find them in the field
+     */
+    void reportCoreMetrics(String event, Options options, CoreWrapper.CoreMetrics metrics) {
+        crashManager.log(event + " " + options.fileType + ": " + metrics);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(FirebaseAnalytics.Param.CONTENT_TYPE, options.fileType);
+        parameters.put("parse_ms", metrics.parseMillis);
+        parameters.put("write_ms", metrics.writeMillis);
+        parameters.put("size", metrics.bytesWritten / 1024);
+        parameters.put("pages", metrics.pages);
+        parameters.put("rss", metrics.peakRssDeltaKb);
+
+        analyticsManager.report(event, parameters);
+
+        if (metrics.parseMillis + metrics.writeMillis >= SLOW_CORE_MILLIS || metrics.peakRssDeltaKb >= SLOW_CORE_RSS_KB) {
+            analyticsManager.report(event + "_slow", parameters);
+        }
+    }
+
     public File retranslate(Options options, String htmlDiff) {
         throw new RuntimeException("not implemented");
     }
@@ -99,7 +186,45 @@ public abstract class FileLoader {
         });
     }
 
+    static void beginTrace(Options options, String stage) {
+        if (options.trace != null) {
+            options.trace.begin(stage);
+        }
+    }
+
+    static void endTrace(Options options, String stage) {
+        if (options.trace != null) {
+            options.trace.end(stage);
+        }
+    }
+
+    void callOnTypeSniffed(Options options, String fileType) {
+        FileLoaderListener strongReferenceListener = listener;
+        if (strongReferenceListener != null) {
+            strongReferenceListener.onTypeSniffed(options, fileType);
+        }
+    }
+
+    void callOnUpdate(Result result) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                FileLoaderListener strongReferenceListener = listener;
+                if (strongReferenceListener != null) {
+                    listener.onUpdate(result);
+                }
+            }
+        });
+    }
+
     void callOnError(Result result, Throwable t) {
+        if (t instanceof OperationCanceledException || t instanceof CoreWrapper.CoreCanceledException) {
+            // nobody is waiting for this result anymore
+            crashManager.log(result.loaderType.name() + " canceled");
+
+            return;
+        }
+
         crashManager.log(result.loaderType.name() + " failed");
         crashManager.log(t);
 
@@ -154,6 +279,10 @@ public abstract class FileLoader {
         public boolean limit;
         public boolean translatable;
 
+        // not parceled, only live as long as the load they belong to
+        public LoadTrace trace;
+        public CancellationSignal cancellationSignal;
+
         public Options() {
         }
 
@@ -206,8 +335,8 @@ public abstract class FileLoader {
         public LoaderType loaderType;
         public Options options;
 
-        public List<String> partTitles = new LinkedList<>();
-        public List<Uri> partUris = new LinkedList<>();
+        public List<String> partTitles = new ArrayList<>();
+        public List<Uri> partUris = new ArrayList<>();
 
         public Result() {
         }
@@ -235,8 +364,18 @@ public abstract class FileLoader {
 
     public interface FileLoaderListener {
 
+        /**
+         * called on the loader thread as soon as the type is known from the header of the document
+         */
+        void onTypeSniffed(Options options, String fileType);
+
         void onSuccess(Result result);
 
+        /**
+         * called after {@link #onSuccess(Result)} if the loader replaced the pages it delivered with more complete ones
+         */
+        void onUpdate(Result result);
+
         void onError(Result result, Throwable throwable);
     }
 
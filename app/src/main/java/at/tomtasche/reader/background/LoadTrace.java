@@ -0,0 +1,61 @@
+package at.tomtasche.reader.background;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * records how long the stages of loading a single document took, relative to the start of the load.
+ * stages may overlap, e.g. preparing a loader while the document is still being copied.
+ */
+public class LoadTrace {
+
+    private final long startTime;
+
+    private final Map<String, Long> startTimes;
+    private final Map<String, Long> durations;
+
+    public LoadTrace() {
+        startTime = SystemClock.elapsedRealtime();
+
+        startTimes = new LinkedHashMap<>();
+        durations = new LinkedHashMap<>();
+    }
+
+    public synchronized void begin(String stage) {
+        startTimes.put(stage, SystemClock.elapsedRealtime());
+    }
+
+    public synchronized void end(String stage) {
+        Long stageStartTime = startTimes.get(stage);
+        if (stageStartTime == null) {
+            return;
+        }
+
+        durations.put(stage, SystemClock.elapsedRealtime() - stageStartTime);
+    }
+
+    public synchronized long getElapsed() {
+        return SystemClock.elapsedRealtime() - startTime;
+    }
+
+    public synchronized Map<String, Long> getDurations() {
+        return new LinkedHashMap<>(durations);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+
+            long offset = startTimes.get(entry.getKey()) - startTime;
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append(" ms (+").append(offset).append(" ms)");
+        }
+
+        return builder.toString();
+    }
+}
@@ -5,16 +5,24 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.system.Os;
+import android.system.OsConstants;
+import android.webkit.MimeTypeMap;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.firebase.analytics.FirebaseAnalytics;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Map;
 
 import at.tomtasche.reader.R;
 import at.tomtasche.reader.nonfree.AnalyticsManager;
@@ -26,8 +34,23 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
 
     private Handler mainHandler;
 
-    private HandlerThread backgroundThread;
-    private Handler backgroundHandler;
+    // loaders run on separate lanes, so a long PDF conversion doesn't hold back opening the next document.
+    // loaders sharing a lane share state (e.g. saving retranslates using the sessions of OdfLoader)
+    private HandlerThread metadataThread;
+    private Handler metadataHandler;
+
+    private HandlerThread coreThread;
+    private Handler coreHandler;
+
+    private HandlerThread converterThread;
+    private Handler converterHandler;
+
+    private HandlerThread onlineThread;
+    private Handler onlineHandler;
+
+    // second pipeline stage, prepares the next loader while MetadataLoader is still copying
+    private HandlerThread prepareThread;
+    private Handler prepareHandler;
 
     private CrashManager crashManager;
     private ConfigManager configManager;
@@ -43,41 +66,67 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
 
     private LoaderListener currentListener;
 
+    // options of the most recently requested load, results of all other loads are outdated
+    private FileLoader.Options currentOptions;
+
     @Override
     public synchronized void onCreate() {
         super.onCreate();
 
         mainHandler = new Handler();
 
-        backgroundThread = new HandlerThread(DocumentFragment.class.getSimpleName());
-        backgroundThread.start();
+        metadataThread = new HandlerThread(DocumentFragment.class.getSimpleName() + "-metadata");
+        metadataThread.start();
+
+        metadataHandler = new Handler(metadataThread.getLooper());
+
+        coreThread = new HandlerThread(DocumentFragment.class.getSimpleName() + "-core");
+        coreThread.start();
+
+        coreHandler = new Handler(coreThread.getLooper());
+
+        converterThread = new HandlerThread(DocumentFragment.class.getSimpleName() + "-converter");
+        converterThread.start();
 
-        backgroundHandler = new Handler(backgroundThread.getLooper());
+        converterHandler = new Handler(converterThread.getLooper());
+
+        onlineThread = new HandlerThread(DocumentFragment.class.getSimpleName() + "-online");
+        onlineThread.start();
+
+        onlineHandler = new Handler(onlineThread.getLooper());
+
+        prepareThread = new HandlerThread(DocumentFragment.class.getSimpleName() + "-prepare");
+        prepareThread.start();
+
+        prepareHandler = new Handler(prepareThread.getLooper());
 
         Context context = this;
 
         initializeProprietaryLibraries();
 
         metadataLoader = new MetadataLoader(context);
-        metadataLoader.initialize(this, mainHandler, backgroundHandler, analyticsManager, crashManager);
+        metadataLoader.initialize(this, mainHandler, metadataHandler, analyticsManager, crashManager);
+
+        // loading the magic database takes a while, do it before the first document is opened
+        new Thread(metadataLoader::initMagicFromAssets, "MagicWarmup").start();
 
         odfLoader = new OdfLoader(context, configManager);
-        odfLoader.initialize(this, mainHandler, backgroundHandler, analyticsManager, crashManager);
+        odfLoader.initialize(this, mainHandler, coreHandler, analyticsManager, crashManager);
 
         pdfLoader = new PdfLoader(context);
-        pdfLoader.initialize(this, mainHandler, backgroundHandler, analyticsManager, crashManager);
+        pdfLoader.initialize(this, mainHandler, converterHandler, analyticsManager, crashManager);
 
         ooxmlLoader = new OoxmlLoader(context);
-        ooxmlLoader.initialize(this, mainHandler, backgroundHandler, analyticsManager, crashManager);
+        ooxmlLoader.initialize(this, mainHandler, coreHandler, analyticsManager, crashManager);
 
         docLoader = new DocLoader(context);
-        docLoader.initialize(this, mainHandler, backgroundHandler, analyticsManager, crashManager);
+        docLoader.initialize(this, mainHandler, converterHandler, analyticsManager, crashManager);
 
-        rawLoader = new RawLoader(context);
-        rawLoader.initialize(this, mainHandler, backgroundHandler, analyticsManager, crashManager);
+        rawLoader = new RawLoader(context, configManager);
+        rawLoader.initialize(this, mainHandler, coreHandler, analyticsManager, crashManager);
 
         onlineLoader = new OnlineLoader(context, odfLoader);
-        onlineLoader.initialize(this, mainHandler, backgroundHandler, analyticsManager, crashManager);
+        onlineLoader.initialize(this, mainHandler, onlineHandler, analyticsManager, crashManager);
     }
 
     // copied from MainActivity, consider how to deduplicate
@@ -141,17 +190,113 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
                 break;
             case METADATA:
                 loader = metadataLoader;
+
+                options.trace = new LoadTrace();
                 break;
             default:
                 loader = null;
         }
 
+        if (currentOptions != options) {
+            cancelPendingLoads();
+
+            if (currentOptions != null && currentOptions.cancellationSignal != null) {
+                // stops the copy and translation of the previous document
+                currentOptions.cancellationSignal.cancel();
+            }
+
+            currentOptions = options;
+        }
+
+        if (options.cancellationSignal == null || options.cancellationSignal.isCanceled()) {
+            options.cancellationSignal = new CancellationSignal();
+        }
+
         loader.loadAsync(options);
     }
 
+    private void cancelPendingLoads() {
+        metadataLoader.cancelPending();
+        odfLoader.cancelPending();
+        pdfLoader.cancelPending();
+        ooxmlLoader.cancelPending();
+        docLoader.cancelPending();
+        rawLoader.cancelPending();
+        onlineLoader.cancelPending();
+
+        prepareHandler.removeCallbacksAndMessages(null);
+    }
+
+    private synchronized boolean isSuperseded(FileLoader.Options options) {
+        if (options == currentOptions) {
+            return false;
+        }
+
+        crashManager.log("dropping result of superseded load");
+
+        return true;
+    }
+
+    @Override
+    public void onTypeSniffed(FileLoader.Options options, String fileType) {
+        if (isSuperseded(options)) {
+            return;
+        }
+
+        // remote config is false for missing keys and in builds without Firebase, so this is a kill switch
+        if (configManager.getBooleanConfig("disable_pipelined_load")) {
+            return;
+        }
+
+        // MetadataLoader keeps modifying the original options while copying
+        FileLoader.Options sniffedOptions = new FileLoader.Options();
+        sniffedOptions.filename = options.filename;
+        sniffedOptions.fileType = fileType;
+        sniffedOptions.fileExtension = MimeTypeMap.getSingleton().getExtensionFromMimeType(fileType);
+        sniffedOptions.trace = options.trace;
+
+        prepareHandler.post(() -> {
+            FileLoader loader = findLoader(sniffedOptions);
+            if (loader == null) {
+                return;
+            }
+
+            FileLoader.beginTrace(sniffedOptions, "prepare");
+
+            try {
+                loader.prepare(sniffedOptions);
+            } catch (Throwable e) {
+                crashManager.log(e);
+            }
+
+            FileLoader.endTrace(sniffedOptions, "prepare");
+        });
+    }
+
+    // same order as the fallbacks in onError
+    private FileLoader findLoader(FileLoader.Options options) {
+        if (odfLoader.isSupported(options)) {
+            return odfLoader;
+        } else if (pdfLoader.isSupported(options)) {
+            return pdfLoader;
+        } else if (ooxmlLoader.isSupported(options)) {
+            return ooxmlLoader;
+        } else if (docLoader.isSupported(options)) {
+            return docLoader;
+        } else if (rawLoader.isSupported(options)) {
+            return rawLoader;
+        }
+
+        return null;
+    }
+
     @Override
     public void onSuccess(FileLoader.Result result) {
         FileLoader.Options options = result.options;
+        if (isSuperseded(options)) {
+            return;
+        }
+
         if (result.loaderType == FileLoader.LoaderType.METADATA) {
             if (!odfLoader.isSupported(options)) {
                 crashManager.log("we do not expect this file to be an ODF: " + options.originalUri.toString());
@@ -162,6 +307,20 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
         } else {
             analyticsManager.report("load_success", FirebaseAnalytics.Param.CONTENT_TYPE, options.fileType, FirebaseAnalytics.Param.CONTENT, result.loaderType.toString());
 
+            LoadTrace trace = options.trace;
+            if (trace != null) {
+                options.trace = null;
+
+                long duration = trace.getElapsed();
+
+                crashManager.log("time to first page: " + duration + " ms, " + trace);
+                analyticsManager.report("load_duration_" + result.loaderType, FirebaseAnalytics.Param.CONTENT_TYPE, options.fileType, FirebaseAnalytics.Param.VALUE, duration);
+
+                for (Map.Entry<String, Long> stage : trace.getDurations().entrySet()) {
+                    analyticsManager.report("load_stage_" + stage.getKey(), FirebaseAnalytics.Param.CONTENT_TYPE, options.fileType, FirebaseAnalytics.Param.VALUE, stage.getValue());
+                }
+            }
+
             if (currentListener != null) {
                 currentListener.onLoadSuccess(result);
             } else {
@@ -170,9 +329,26 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
         }
     }
 
+    @Override
+    public void onUpdate(FileLoader.Result result) {
+        if (isSuperseded(result.options)) {
+            return;
+        }
+
+        if (currentListener != null) {
+            currentListener.onLoadUpdate(result);
+        } else {
+            logMissingListener();
+        }
+    }
+
     @Override
     public void onError(FileLoader.Result result, Throwable error) {
         FileLoader.Options options = result.options;
+        if (isSuperseded(options)) {
+            return;
+        }
+
         crashManager.log(error, options.originalUri);
 
         if (error instanceof FileLoader.EncryptedDocumentException) {
@@ -208,6 +384,8 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
 
             return;
         } else if (result.loaderType != FileLoader.LoaderType.METADATA) {
+            logTrace(options);
+
             if (currentListener != null) {
                 currentListener.onError(result, error);
             } else {
@@ -221,6 +399,8 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
 
         analyticsManager.report("load_error", FirebaseAnalytics.Param.CONTENT_TYPE, options.fileType, FirebaseAnalytics.Param.CONTENT, result.loaderType.toString());
 
+        logTrace(options);
+
         if (currentListener != null) {
             currentListener.onError(result, error);
         } else {
@@ -228,33 +408,41 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
         }
     }
 
+    private void logTrace(FileLoader.Options options) {
+        LoadTrace trace = options.trace;
+        if (trace == null) {
+            return;
+        }
+
+        options.trace = null;
+
+        crashManager.log("load failed after " + trace.getElapsed() + " ms, " + trace);
+    }
+
     public boolean isOnlineSupported(FileLoader.Options options) {
         return onlineLoader.isSupported(options);
     }
 
     public void saveAsync(FileLoader.Result lastResult, Uri outFile, String htmlDiff) {
-        backgroundHandler.post(() -> saveSync(lastResult, outFile, htmlDiff));
+        // retranslate needs the core sessions, which are only used from the core lane
+        coreHandler.post(() -> saveSync(lastResult, outFile, htmlDiff));
     }
 
     private void saveSync(FileLoader.Result lastResult, Uri outFile, String htmlDiff) {
         try {
-            File fileToSave;
-            if (htmlDiff != null) {
-                fileToSave = odfLoader.retranslate(lastResult.options, htmlDiff);
-                if (fileToSave == null) {
-                    throw new RuntimeException("retranslate failed");
+            FileLoader.Options options = lastResult.options;
+            // the destination is only opened for writing once the edit is known to apply
+            if (htmlDiff != null && !configManager.getBooleanConfig("disable_direct_save") && odfLoader.edit(options, htmlDiff)) {
+                if (!saveDirect(options, outFile)) {
+                    File editedFile = odfLoader.save(options);
+                    if (editedFile == null) {
+                        throw new RuntimeException("save failed");
+                    }
+
+                    writeCopy(outFile, editedFile, true);
                 }
             } else {
-                // "full save" from the main UI
-                fileToSave = AndroidFileCache.getCacheFile(this, lastResult.options.cacheUri);
-            }
-
-            OutputStream outputStream = getContentResolver().openOutputStream(outFile);
-            StreamUtil.copy(fileToSave, outputStream);
-            outputStream.close();
-
-            if (htmlDiff != null) {
-                fileToSave.delete();
+                saveCopy(options, outFile, htmlDiff);
             }
 
             mainHandler.post(() -> {
@@ -276,8 +464,123 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
         }
     }
 
+    /**
+     * applies the edits found in the EditJournal of the given document to a copy of it
+     */
+    public void recoverAsync(FileLoader.Result lastResult) {
+        // retranslate needs the core sessions, which are only used from the core lane
+        coreHandler.post(() -> recoverSync(lastResult));
+    }
+
+    private void recoverSync(FileLoader.Result lastResult) {
+        FileLoader.Options options = lastResult.options;
+
+        try {
+            String htmlDiff = EditJournal.read(this, options);
+            if (htmlDiff == null) {
+                throw new FileNotFoundException("journal is empty");
+            }
+
+            File editedFile = odfLoader.retranslate(options, htmlDiff);
+            if (editedFile == null) {
+                throw new RuntimeException("retranslate failed");
+            }
+
+            // retranslate would overwrite the file while it's open if the recovered document is edited again
+            String name = editedFile.getName();
+            String extension = name.substring(name.lastIndexOf('.') + 1);
+            File recoveredFile = new File(editedFile.getParentFile(), "recovered-" + System.currentTimeMillis() + "." + extension);
+            if (!editedFile.renameTo(recoveredFile)) {
+                throw new IOException("could not rename recovered document");
+            }
+
+            // the edits are part of the recovered document now, which has a journal of its own
+            EditJournal.clear(this, options);
+
+            Uri recoveredUri = AndroidFileCache.getCacheFileUri(this, recoveredFile);
+
+            analyticsManager.report("edit_recovery_success", FirebaseAnalytics.Param.CONTENT_TYPE, options.fileType);
+
+            mainHandler.post(() -> {
+                if (currentListener != null) {
+                    currentListener.onRecoverSuccess(recoveredUri);
+                } else {
+                    logMissingListener();
+                }
+            });
+        } catch (Throwable e) {
+            analyticsManager.report("edit_recovery_error", FirebaseAnalytics.Param.CONTENT_TYPE, options.fileType);
+            crashManager.log(e, options.originalUri);
+
+            mainHandler.post(() -> {
+                if (currentListener != null) {
+                    currentListener.onRecoverError();
+                } else {
+                    logMissingListener();
+                }
+            });
+        }
+    }
+
+    // the core writes the edited document straight to the destination instead of the cache, which saves copying it over
+    private boolean saveDirect(FileLoader.Options options, Uri outFile) {
+        try (ParcelFileDescriptor descriptor = getContentResolver().openFileDescriptor(outFile, "wt")) {
+            if (descriptor == null) {
+                return false;
+            }
+
+            // the core seeks while writing the package, e.g. pipes of cloud providers have to be written sequentially
+            if (!OsConstants.S_ISREG(Os.fstat(descriptor.getFileDescriptor()).st_mode)) {
+                return false;
+            }
+
+            if (odfLoader.save(options, descriptor.getFd())) {
+                return true;
+            }
+        } catch (Exception e) {
+            crashManager.log(e);
+        }
+
+        // writeCopy truncates the destination when it opens it, a partially written document doesn't remain
+        crashManager.log("direct save failed");
+
+        return false;
+    }
+
+    private void saveCopy(FileLoader.Options options, Uri outFile, String htmlDiff) throws IOException {
+        File fileToSave;
+        if (htmlDiff != null) {
+            fileToSave = odfLoader.retranslate(options, htmlDiff);
+            if (fileToSave == null) {
+                throw new RuntimeException("retranslate failed");
+            }
+        } else {
+            // "full save" from the main UI
+            fileToSave = AndroidFileCache.getCacheFile(this, options.cacheUri);
+        }
+
+        writeCopy(outFile, fileToSave, htmlDiff != null);
+    }
+
+    private void writeCopy(Uri outFile, File fileToSave, boolean edited) throws IOException {
+        OutputStream outputStream = getContentResolver().openOutputStream(outFile, "wt");
+        try {
+            StreamUtil.copy(fileToSave, outputStream);
+        } finally {
+            outputStream.close();
+        }
+
+        if (edited) {
+            fileToSave.delete();
+        }
+    }
+
     @Override
     public void onDestroy() {
+        if (currentOptions != null && currentOptions.cancellationSignal != null) {
+            currentOptions.cancellationSignal.cancel();
+        }
+
         if (metadataLoader != null) {
             metadataLoader.close();
         }
@@ -306,7 +609,11 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
             onlineLoader.close();
         }
 
-        backgroundThread.quit();
+        metadataThread.quit();
+        coreThread.quit();
+        converterThread.quit();
+        onlineThread.quit();
+        prepareThread.quit();
 
         super.onDestroy();
     }
@@ -319,11 +626,15 @@ public class LoaderService extends Service implements FileLoader.FileLoaderListe
 
     public interface LoaderListener {
         void onLoadSuccess(FileLoader.Result result);
+        void onLoadUpdate(FileLoader.Result result);
         void onSaveSuccess(Uri outFile);
 
         void onError(FileLoader.Result result, Throwable error);
         void onEncrypted(FileLoader.Result result);
         void onUnsupported(FileLoader.Result result);
         void onSaveError();
+
+        void onRecoverSuccess(Uri recoveredFile);
+        void onRecoverError();
     }
 }
\ No newline at end of file
@@ -3,9 +3,14 @@ package at.tomtasche.reader.background;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.OpenableColumns;
 import android.webkit.MimeTypeMap;
 
+import com.google.firebase.analytics.FirebaseAnalytics;
 import com.hzy.libmagic.MagicApi;
 
 import java.io.File;
@@ -17,32 +22,49 @@ import java.net.URLConnection;
 
 public class MetadataLoader extends FileLoader {
 
+    // libmagic holds a single database per process, it is loaded once and kept until the process dies
+    private static final Object MAGIC_LOCK = new Object();
+    private static boolean magicLoaded;
+
     public MetadataLoader(Context context) {
         super(context, LoaderType.METADATA);
     }
 
-    private boolean initMagicFromAssets() {
-        InputStream inputStream = null;
-        try {
-            inputStream = context.getAssets().open("magic.mgc");
-            int length = inputStream.available();
-            byte[] buffer = new byte[length];
-            if (inputStream.read(buffer) > 0) {
-                return MagicApi.loadFromBytes(buffer, MagicApi.MAGIC_MIME_TYPE | MagicApi.MAGIC_COMPRESS_TRANSP) == 0;
+    /**
+     * blocks until the magic database is loaded, which is cheap once another thread warmed it up
+     */
+    boolean initMagicFromAssets() {
+        synchronized (MAGIC_LOCK) {
+            if (magicLoaded) {
+                return true;
             }
-        } catch (Throwable e) {
-            crashManager.log(e);
-        } finally {
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    crashManager.log(e);
+
+            long start = SystemClock.elapsedRealtime();
+
+            InputStream inputStream = null;
+            try {
+                inputStream = context.getAssets().open("magic.mgc");
+                int length = inputStream.available();
+                byte[] buffer = new byte[length];
+                if (inputStream.read(buffer) > 0) {
+                    magicLoaded = MagicApi.loadFromBytes(buffer, MagicApi.MAGIC_MIME_TYPE | MagicApi.MAGIC_COMPRESS_TRANSP) == 0;
+                }
+            } catch (Throwable e) {
+                crashManager.log(e);
+            } finally {
+                if (inputStream != null) {
+                    try {
+                        inputStream.close();
+                    } catch (IOException e) {
+                        crashManager.log(e);
+                    }
                 }
             }
-        }
 
-        return false;
+            crashManager.log("loading magic took " + (SystemClock.elapsedRealtime() - start) + " ms");
+
+            return magicLoaded;
+        }
     }
 
     @Override
@@ -95,14 +117,56 @@ public class MetadataLoader extends FileLoader {
 
             options.filename = filename;
 
+            // detected from the first KB of the document, before the copy is complete
+            String[] sniffedType = new String[1];
+
             File cachedFile;
             if (AndroidFileCache.isCached(context, uri)) {
                 cachedFile = AndroidFileCache.getCacheFile(context, uri);
+
+                sniffedType[0] = MimeSniffer.sniff(cachedFile, options.filename);
+                if (sniffedType[0] != null) {
+                    callOnTypeSniffed(options, sniffedType[0]);
+                }
             } else {
-                cachedFile = AndroidFileCache.createCacheFile(context);
+                DocumentCacheIndex.Fingerprint fingerprint = DocumentCacheIndex.Fingerprint.of(context, uri);
+
+                cachedFile = DocumentCacheIndex.findCachedFile(context, uri, fingerprint);
+                if (cachedFile == null) {
+                    cachedFile = AndroidFileCache.createCacheFile(context);
+
+                    beginTrace(options, "copy");
+
+                    try {
+                        copyToCache(uri, cachedFile, options.cancellationSignal, (header, length) -> {
+                            sniffedType[0] = MimeSniffer.sniff(header, length, options.filename);
+                            if (sniffedType[0] != null) {
+                                // lets the next loader prepare while the rest of the document is copied
+                                callOnTypeSniffed(options, sniffedType[0]);
+                            }
+                        });
+                    } catch (OperationCanceledException e) {
+                        // a partial copy must not be picked up later
+                        cachedFile.delete();
+
+                        throw e;
+                    }
+
+                    endTrace(options, "copy");
+
+                    try {
+                        DocumentCacheIndex.put(context, uri, fingerprint, cachedFile);
+                    } catch (IOException e) {
+                        crashManager.log(e);
+                    }
+                } else {
+                    crashManager.log("reusing cached copy of unchanged document");
 
-                InputStream stream = context.getContentResolver().openInputStream(uri);
-                StreamUtil.copy(stream, cachedFile);
+                    sniffedType[0] = MimeSniffer.sniff(cachedFile, options.filename);
+                    if (sniffedType[0] != null) {
+                        callOnTypeSniffed(options, sniffedType[0]);
+                    }
+                }
             }
 
             // if file didn't exist an exception would have been thrown by now
@@ -113,13 +177,21 @@ public class MetadataLoader extends FileLoader {
             String[] fileSplit = options.filename.split("\\.");
             String extension = fileSplit.length > 0 ? fileSplit[fileSplit.length - 1] : "N/A";
 
-            String type = null;
-            try {
-                if (initMagicFromAssets()) {
-                    type = MagicApi.magicFile(cachedFile.getAbsolutePath());
+            String type = sniffedType[0];
+            if (type == null) {
+                beginTrace(options, "magic");
+
+                try {
+                    if (initMagicFromAssets()) {
+                        synchronized (MAGIC_LOCK) {
+                            type = MagicApi.magicFile(cachedFile.getAbsolutePath());
+                        }
+                    }
+                } catch (Throwable e) {
+                    crashManager.log(e);
                 }
-            } catch (Throwable e) {
-                crashManager.log(e);
+
+                endTrace(options, "magic");
             }
 
             if (type == null) {
@@ -174,6 +246,13 @@ public class MetadataLoader extends FileLoader {
         } catch (Throwable e) {
             options.fileType = "N/A";
 
+            if (e instanceof OperationCanceledException) {
+                // the document itself is fine, the user just opened another one
+                callOnError(result, e);
+
+                return;
+            }
+
             try {
                 RecentDocumentsUtil.removeRecentDocument(context, options.filename, options.originalUri);
             } catch (Exception e1) {
@@ -184,19 +263,58 @@ public class MetadataLoader extends FileLoader {
         }
     }
 
-    @Override
-    public void close() {
-        super.close();
+    private void copyToCache(Uri uri, File cachedFile, CancellationSignal cancellationSignal, StreamUtil.HeaderListener headerListener) throws IOException {
+        long start = SystemClock.elapsedRealtime();
 
-        backgroundHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    MagicApi.close();
-                } catch (Throwable e) {
-                    crashManager.log(e);
-                }
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(uri, "r", cancellationSignal);
+        } catch (OperationCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            // not every provider supports file descriptors, fall back to streams
+        }
+
+        // the header is only reported once, even if the copy is started over with streams
+        boolean[] headerNotified = new boolean[1];
+        StreamUtil.HeaderListener onceListener = (header, length) -> {
+            if (!headerNotified[0]) {
+                headerNotified[0] = true;
+
+                headerListener.onHeader(header, length);
+            }
+        };
+
+        long size = -1;
+        String method = null;
+        if (descriptor != null) {
+            try {
+                size = StreamUtil.copy(descriptor.getFileDescriptor(), cachedFile, onceListener, cancellationSignal);
+
+                method = "descriptor";
+            } catch (OperationCanceledException e) {
+                throw e;
+            } catch (Exception e) {
+                // some providers hand out descriptors that can't be read like files, fall back to streams
+                crashManager.log(e);
+            } finally {
+                descriptor.close();
             }
-        });
+        }
+
+        if (method == null) {
+            InputStream stream = context.getContentResolver().openInputStream(uri);
+            size = StreamUtil.copy(stream, cachedFile, onceListener, cancellationSignal);
+
+            method = "stream";
+        }
+
+        long duration = SystemClock.elapsedRealtime() - start;
+        long throughput = size / 1024 * 1000 / Math.max(duration, 1);
+
+        crashManager.log("copied " + size + " bytes via " + method + " in " + duration + " ms (" + throughput + " KB/s)");
+        // throughput in KB/s, size in KB
+        analyticsManager.report("cache_copy_" + method, FirebaseAnalytics.Param.VALUE, throughput, "size", size / 1024);
     }
+
 }
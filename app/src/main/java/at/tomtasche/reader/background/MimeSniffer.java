@@ -0,0 +1,167 @@
+package at.tomtasche.reader.background;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * detects the most common document types from the first few KB of a file, which is available long
+ * before a big document is copied completely. returns null if the header is not conclusive.
+ */
+public class MimeSniffer {
+
+    public static final int HEADER_SIZE = 8 * 1024;
+
+    private static final byte[] PDF_MAGIC = {'%', 'P', 'D', 'F', '-'};
+    private static final byte[] OLE2_MAGIC = {(byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1};
+    private static final byte[] ZIP_MAGIC = {'P', 'K', 3, 4};
+
+    private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP_FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int ZIP_METHOD_STORED = 0;
+
+    public static String sniff(File file, String filename) {
+        byte[] header = new byte[HEADER_SIZE];
+        int length = 0;
+
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (length < header.length && (read = in.read(header, length, header.length - length)) > 0) {
+                length += read;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        return sniff(header, length, filename);
+    }
+
+    public static String sniff(byte[] header, int length, String filename) {
+        if (startsWith(header, length, PDF_MAGIC)) {
+            return "application/pdf";
+        }
+
+        if (startsWith(header, length, ZIP_MAGIC)) {
+            return sniffZip(header, length);
+        }
+
+        if (startsWith(header, length, OLE2_MAGIC)) {
+            return sniffOle2(filename);
+        }
+
+        return null;
+    }
+
+    // walks the local file headers: ODF starts with an uncompressed "mimetype" entry, OOXML can be told apart by its folders
+    private static String sniffZip(byte[] header, int length) {
+        // plain archives can have folders with the same names, only packages list their content types
+        boolean hasContentTypes = false;
+        String ooxmlType = null;
+
+        int offset = 0;
+        while (offset + ZIP_LOCAL_HEADER_SIZE <= length && startsWith(header, offset, length, ZIP_MAGIC)) {
+            int flags = readShort(header, offset + 6);
+            int method = readShort(header, offset + 8);
+            long compressedSize = readInt(header, offset + 18) & 0xFFFFFFFFL;
+            int nameLength = readShort(header, offset + 26);
+            int extraLength = readShort(header, offset + 28);
+
+            int nameOffset = offset + ZIP_LOCAL_HEADER_SIZE;
+            if (nameOffset + nameLength > length) {
+                break;
+            }
+
+            String name = new String(header, nameOffset, nameLength, StandardCharsets.UTF_8);
+            int dataOffset = nameOffset + nameLength + extraLength;
+
+            if (offset == 0 && "mimetype".equals(name) && method == ZIP_METHOD_STORED) {
+                if (dataOffset + compressedSize > length || compressedSize > 256) {
+                    return null;
+                }
+
+                String mimetype = new String(header, dataOffset, (int) compressedSize, StandardCharsets.US_ASCII).trim();
+                if (mimetype.startsWith("application/")) {
+                    return mimetype;
+                }
+
+                return null;
+            }
+
+            if ("[Content_Types].xml".equals(name)) {
+                hasContentTypes = true;
+            } else if (ooxmlType == null) {
+                if (name.startsWith("word/")) {
+                    ooxmlType = "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+                } else if (name.startsWith("xl/")) {
+                    ooxmlType = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+                } else if (name.startsWith("ppt/")) {
+                    ooxmlType = "application/vnd.openxmlformats-officedocument.presentationml.presentation";
+                }
+            }
+
+            if (hasContentTypes && ooxmlType != null) {
+                return ooxmlType;
+            }
+
+            if ((flags & ZIP_FLAG_DATA_DESCRIPTOR) != 0) {
+                // size of the entry is only known after its data, can't skip to the next header
+                break;
+            }
+
+            if (dataOffset + compressedSize + ZIP_LOCAL_HEADER_SIZE > length) {
+                break;
+            }
+
+            offset = (int) (dataOffset + compressedSize);
+        }
+
+        return null;
+    }
+
+    // the type of an OLE2 container is stored in its directory, which is not necessarily part of the header
+    private static String sniffOle2(String filename) {
+        if (filename == null) {
+            return null;
+        }
+
+        String lowerFilename = filename.toLowerCase(Locale.ROOT);
+        if (lowerFilename.endsWith(".doc") || lowerFilename.endsWith(".dot")) {
+            return "application/msword";
+        } else if (lowerFilename.endsWith(".xls")) {
+            return "application/vnd.ms-excel";
+        } else if (lowerFilename.endsWith(".ppt")) {
+            return "application/vnd.ms-powerpoint";
+        }
+
+        return null;
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        return startsWith(data, 0, length, prefix);
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (offset + prefix.length > length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return readShort(data, offset) | (readShort(data, offset + 2) << 16);
+    }
+}
@@ -2,23 +2,40 @@ package at.tomtasche.reader.background;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.webkit.MimeTypeMap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import at.tomtasche.reader.nonfree.ConfigManager;
 
 public class OdfLoader extends FileLoader {
 
+    // big spreadsheets are shown with only the top left corner of every sheet first
+    private static final long PREVIEW_MIN_SIZE = 256 * 1024;
+    private static final int PREVIEW_ROWS = 100;
+    private static final int PREVIEW_COLUMNS = 30;
+
+    // big text documents show the thumbnail of their first page, which is stored in the package by most applications
+    private static final long THUMBNAIL_PREVIEW_MIN_CONTENT_SIZE = 1024 * 1024;
+
+    private static final String SPREADSHEET_TYPE = "application/vnd.oasis.opendocument.spreadsheet";
+    private static final String TEXT_TYPE = "application/vnd.oasis.opendocument.text";
+
     private final ConfigManager configManager;
 
-    private CoreWrapper lastCore;
-    private CoreWrapper.CoreOptions lastCoreOptions;
+    private final CoreSessionCache sessionCache;
 
     public OdfLoader(Context context, ConfigManager configManager) {
         super(context, LoaderType.ODF);
 
         this.configManager = configManager;
+
+        sessionCache = new CoreSessionCache();
     }
 
     @Override
@@ -33,9 +50,14 @@ public class OdfLoader extends FileLoader {
         result.loaderType = type;
 
         try {
-            translate(options, result);
+            boolean preview = translate(options, result, true, isPreviewEnabled(options));
 
             callOnSuccess(result);
+
+            if (preview) {
+                // queued behind the preview on the same lane, so opening another document drops it too
+                backgroundHandler.postAtTime(() -> loadComplete(options), this, SystemClock.uptimeMillis());
+            }
         } catch (Throwable e) {
             if (e instanceof CoreWrapper.CoreEncryptedException) {
                 e = new EncryptedDocumentException();
@@ -45,23 +67,60 @@ public class OdfLoader extends FileLoader {
         }
     }
 
-    private void translate(Options options, Result result) throws Exception {
-        File cachedFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
+    private boolean isPreviewEnabled(Options options) {
+        // editing needs the session of the complete document
+        if (options.translatable) {
+            return false;
+        }
 
-        if (lastCore != null) {
-            lastCore.close();
-            lastCore = null;
+        if (options.fileType.startsWith(SPREADSHEET_TYPE)) {
+            if (configManager.getBooleanConfig("disable_spreadsheet_preview")) {
+                return false;
+            }
+
+            File cachedFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
+            return cachedFile.length() >= PREVIEW_MIN_SIZE;
+        } else if (options.fileType.startsWith(TEXT_TYPE)) {
+            // the size of the content is checked once the package is opened
+            return options.password == null && !configManager.getBooleanConfig("disable_thumbnail_preview");
+        }
+
+        return false;
+    }
+
+    private void loadComplete(Options options) {
+        if (isCanceled(options)) {
+            return;
         }
 
-        CoreWrapper core = new CoreWrapper();
+        final Result result = new Result();
+        result.options = options;
+        result.loaderType = type;
+
         try {
-            core.initialize();
+            translate(options, result, true, false);
 
-            lastCore = core;
+            callOnUpdate(result);
         } catch (Throwable e) {
-            crashManager.log(e);
+            if (e instanceof CoreWrapper.CoreEncryptedException) {
+                e = new EncryptedDocumentException();
+            }
+
+            // the preview is no replacement for the document, e.g. a thumbnail only shows its first page
+            callOnError(result, e);
         }
+    }
+
+    @Override
+    public void prepare(Options options) {
+        sessionCache.prepare();
+    }
 
+    /**
+     * @return true if only a preview was translated because the complete document is neither cached nor open yet
+     */
+    private boolean translate(Options options, Result result, boolean useTranslationCache, boolean allowPreview) throws Exception {
+        File cachedFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
         File cacheDirectory = AndroidFileCache.getCacheDirectory(cachedFile);
 
         CoreWrapper.CoreOptions coreOptions = new CoreWrapper.CoreOptions();
@@ -76,9 +135,66 @@ public class OdfLoader extends FileLoader {
             coreOptions.paging = true;
         }
 
-        lastCoreOptions = coreOptions;
+        CoreWrapper.CoreResult coreResult = null;
+
+        CoreSessionCache.Session session = sessionCache.get(coreOptions);
+        if (session != null) {
+            coreResult = session.result;
+        }
+
+        // password protected documents are not persisted, otherwise they could be reopened without the password
+        String translationKey = null;
+        if (coreResult == null && useTranslationCache && options.password == null) {
+            try {
+                translationKey = TranslationCache.getKey(cachedFile, coreOptions);
+
+                coreResult = TranslationCache.get(context, translationKey);
+                if (coreResult == null) {
+                    coreOptions.outputPath = TranslationCache.prepareOutputDirectory(context, translationKey).getPath();
+                }
+            } catch (IOException e) {
+                crashManager.log(e);
+
+                translationKey = null;
+            }
+        }
+
+        boolean preview = false;
+        if (coreResult == null && allowPreview) {
+            File previewDirectory = new File(cacheDirectory, "preview");
+            previewDirectory.mkdirs();
+
+            CoreWrapper.CoreResult previewResult;
+            if (options.fileType.startsWith(SPREADSHEET_TYPE)) {
+                previewResult = translateSpreadsheetPreview(coreOptions, previewDirectory, options);
+            } else {
+                previewResult = extractThumbnailPreview(cachedFile, previewDirectory);
+            }
+
+            if (previewResult != null) {
+                coreResult = previewResult;
+                preview = true;
+            }
+        }
 
-        CoreWrapper.CoreResult coreResult = lastCore.parse(coreOptions);
+        if (coreResult == null) {
+            CoreWrapper core = sessionCache.newCore();
+
+            coreResult = parse(core, coreOptions, options);
+            if (coreResult.exception == null) {
+                sessionCache.put(new CoreSessionCache.Session(core, coreOptions, coreResult));
+
+                if (translationKey != null) {
+                    try {
+                        TranslationCache.put(context, translationKey, coreResult);
+                    } catch (IOException e) {
+                        crashManager.log(e);
+                    }
+                }
+            } else {
+                core.close();
+            }
+        }
 
         String coreExtension = coreResult.extension;
         // "unnamed" refers to default of Meta::typeToString
@@ -95,45 +211,240 @@ public class OdfLoader extends FileLoader {
             throw coreResult.exception;
         }
 
-        for (int i = 0; i < coreResult.pagePaths.size(); i++) {
-            File entryFile = new File(coreResult.pagePaths.get(i));
+        // editing diffs the DOM against the translation, which requires all rows to be part of the page
+        if (options.fileType.startsWith(SPREADSHEET_TYPE) && !options.translatable && !configManager.getBooleanConfig("disable_spreadsheet_window")) {
+            for (String pagePath : coreResult.pagePaths) {
+                try {
+                    SpreadsheetWindow.split(context, new File(pagePath));
+                } catch (IOException e) {
+                    crashManager.log(e);
+                }
+            }
+        }
+
+        for (int i = 0; i < coreResult.pagePaths.length; i++) {
+            File entryFile = new File(coreResult.pagePaths[i]);
 
-            result.partTitles.add(coreResult.pageNames.get(i));
+            result.partTitles.add(coreResult.pageNames[i]);
             result.partUris.add(Uri.fromFile(entryFile));
         }
+
+        return preview;
+    }
+
+    private CoreWrapper.CoreResult translateSpreadsheetPreview(CoreWrapper.CoreOptions coreOptions, File previewDirectory, Options options) {
+        CoreWrapper.CoreOptions previewOptions = new CoreWrapper.CoreOptions();
+        previewOptions.inputPath = coreOptions.inputPath;
+        previewOptions.outputPath = previewDirectory.getPath();
+        previewOptions.password = coreOptions.password;
+        previewOptions.paging = coreOptions.paging;
+        previewOptions.spreadsheetRowLimit = PREVIEW_ROWS;
+        previewOptions.spreadsheetColumnLimit = PREVIEW_COLUMNS;
+        previewOptions.keepSession = false;
+
+        // the core translates all sheets in one go, limiting their size is what makes the preview fast
+        CoreWrapper core = sessionCache.newCore();
+        CoreWrapper.CoreResult previewResult = parse(core, previewOptions, options);
+        core.close();
+
+        if (previewResult.exception instanceof CoreWrapper.CoreCanceledException) {
+            throw (CoreWrapper.CoreCanceledException) previewResult.exception;
+        }
+
+        // single sheets are not worth a second pass, errors are reported by the complete translation
+        if (previewResult.exception != null || previewResult.pagePaths.length <= 1) {
+            return null;
+        }
+
+        return previewResult;
+    }
+
+    // the core can't emit a text document in parts, so the thumbnail is shown while it translates
+    private CoreWrapper.CoreResult extractThumbnailPreview(File cachedFile, File previewDirectory) {
+        try (ZipFile zipFile = new ZipFile(cachedFile)) {
+            ZipEntry contentEntry = zipFile.getEntry("content.xml");
+            ZipEntry thumbnailEntry = zipFile.getEntry("Thumbnails/thumbnail.png");
+            if (contentEntry == null || thumbnailEntry == null || contentEntry.getSize() < THUMBNAIL_PREVIEW_MIN_CONTENT_SIZE) {
+                return null;
+            }
+
+            // the thumbnail of an encrypted document must not be shown before the password was entered
+            ZipEntry manifestEntry = zipFile.getEntry("META-INF/manifest.xml");
+            if (manifestEntry != null) {
+                ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+                StreamUtil.copy(zipFile.getInputStream(manifestEntry), manifest);
+
+                if (manifest.toString(StreamUtil.ENCODING).contains("encryption-data")) {
+                    return null;
+                }
+            }
+
+            StreamUtil.copy(zipFile.getInputStream(thumbnailEntry), new File(previewDirectory, "thumbnail.png"));
+
+            File htmlFile = new File(previewDirectory, "thumbnail.html");
+            StreamUtil.copy(context.getAssets().open("thumbnail.html"), htmlFile);
+
+            CoreWrapper.CoreResult previewResult = new CoreWrapper.CoreResult();
+            previewResult.pageNames = new String[]{null};
+            previewResult.pagePaths = new String[]{htmlFile.getPath()};
+
+            return previewResult;
+        } catch (IOException e) {
+            crashManager.log(e);
+
+            return null;
+        }
     }
 
     @Override
     public File retranslate(Options options, String htmlDiff) {
-        if (lastCore == null) {
-            // necessary if fragment was destroyed in the meanwhile - meaning the Loader is reinstantiated
+        CoreWrapper.CoreResult result = backtranslate(options, htmlDiff, getCacheOutputOptions(options));
+        if (result == null) {
+            return null;
+        }
+
+        return new File(result.outputPath);
+    }
+
+    /**
+     * applies the edit to the session the document is still open in, which is then saved with
+     * {@link #save(Options, int)} or {@link #save(Options)}. the document is not translated again if it
+     * was closed in the meanwhile, {@link #retranslate(Options, String)} takes care of that.
+     *
+     * @return false if the edit was not applied, the session is closed in that case
+     */
+    public boolean edit(Options options, String htmlDiff) {
+        File inputFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
+
+        CoreSessionCache.Session session = sessionCache.get(inputFile.getPath());
+        if (session == null) {
+            return false;
+        }
+
+        CoreWrapper.CoreResult result = session.core.edit(htmlDiff);
+        reportCoreMetrics("core_edit", options, result.metrics);
+        if (result.exception != null) {
+            crashManager.log(result.exception);
+
+            // the document in memory might be edited partially
+            sessionCache.remove(inputFile.getPath());
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * writes the document edited by {@link #edit(Options, String)} straight to the given descriptor
+     *
+     * @param fd has to refer to a regular file, the document is not written sequentially
+     * @return false if the document was not written completely, it can still be saved with {@link #save(Options)}
+     */
+    public boolean save(Options options, int fd) {
+        CoreWrapper.CoreOptions coreOptions = new CoreWrapper.CoreOptions();
+        coreOptions.outputFd = fd;
+
+        CoreWrapper.CoreResult result = saveEdited(options, coreOptions);
+        if (result == null) {
+            return false;
+        }
+
+        // the edit was applied to the document in memory, which no longer matches the translated pages
+        sessionCache.remove(AndroidFileCache.getCacheFile(context, options.cacheUri).getPath());
+
+        return true;
+    }
+
+    /**
+     * writes the document edited by {@link #edit(Options, String)} to the cache
+     *
+     * @return null if the document could not be saved
+     */
+    public File save(Options options) {
+        try {
+            CoreWrapper.CoreResult result = saveEdited(options, getCacheOutputOptions(options));
+            if (result == null) {
+                return null;
+            }
+
+            return new File(result.outputPath);
+        } finally {
+            sessionCache.remove(AndroidFileCache.getCacheFile(context, options.cacheUri).getPath());
+        }
+    }
+
+    private CoreWrapper.CoreResult saveEdited(Options options, CoreWrapper.CoreOptions coreOptions) {
+        File inputFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
+
+        CoreSessionCache.Session session = sessionCache.get(inputFile.getPath());
+        if (session == null) {
+            return null;
+        }
+
+        CoreWrapper.CoreResult result = session.core.backtranslate(coreOptions, null);
+        reportCoreMetrics("core_save", options, result.metrics);
+        if (result.exception != null) {
+            crashManager.log(result.exception);
+
+            return null;
+        }
+
+        return result;
+    }
+
+    private CoreWrapper.CoreOptions getCacheOutputOptions(Options options) {
+        File inputFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
+        File inputCacheDirectory = AndroidFileCache.getCacheDirectory(inputFile);
+        File tempFilePrefix = new File(inputCacheDirectory, "retranslate");
+
+        CoreWrapper.CoreOptions coreOptions = new CoreWrapper.CoreOptions();
+        coreOptions.outputPath = tempFilePrefix.getPath();
+
+        return coreOptions;
+    }
+
+    private CoreWrapper.CoreResult backtranslate(Options options, String htmlDiff, CoreWrapper.CoreOptions coreOptions) {
+        File inputFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
+
+        CoreSessionCache.Session session = sessionCache.get(inputFile.getPath());
+        if (session == null) {
+            // necessary if fragment was destroyed in the meanwhile - meaning the Loader is reinstantiated -
+            // or if the session was evicted because other documents were opened since
 
             Result result = new Result();
             result.options = options;
 
             try {
-                translate(options, result);
+                // the pages could be served from TranslationCache, but editing requires a parsed document
+                translate(options, result, false, false);
             } catch (Exception e) {
                 crashManager.log(e);
 
                 return null;
             }
-        }
-
-        File inputFile = new File(lastCoreOptions.inputPath);
-        File inputCacheDirectory = AndroidFileCache.getCacheDirectory(inputFile);
-        File tempFilePrefix = new File(inputCacheDirectory, "retranslate");
 
-        lastCoreOptions.outputPath = tempFilePrefix.getPath();
+            session = sessionCache.get(inputFile.getPath());
+            if (session == null) {
+                return null;
+            }
+        }
 
         try {
-            CoreWrapper.CoreResult result = lastCore.backtranslate(lastCoreOptions, htmlDiff);
+            CoreWrapper.CoreResult result = session.core.backtranslate(coreOptions, htmlDiff);
+            reportCoreMetrics("core_backtranslate", options, result.metrics);
+            if (result.exception != null) {
+                throw result.exception;
+            }
 
-            return new File(result.outputPath);
+            return result;
         } catch (Throwable e) {
             crashManager.log(e);
 
             return null;
+        } finally {
+            // the edit was applied to the document in memory, which no longer matches the translated pages
+            sessionCache.remove(inputFile.getPath());
         }
     }
 
@@ -141,9 +452,6 @@ public class OdfLoader extends FileLoader {
     public void close() {
         super.close();
 
-        if (lastCore != null) {
-            lastCore.close();
-            lastCore = null;
-        }
+        sessionCache.close();
     }
 }
@@ -7,6 +7,7 @@ import android.os.Handler;
 import android.webkit.MimeTypeMap;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -19,11 +20,12 @@ import at.tomtasche.reader.nonfree.CrashManager;
 
 public class OoxmlLoader extends FileLoader {
 
-    private CoreWrapper lastCore;
-    private CoreWrapper.CoreOptions lastCoreOptions;
+    private final CoreSessionCache sessionCache;
 
     public OoxmlLoader(Context context) {
         super(context, LoaderType.OOXML);
+
+        sessionCache = new CoreSessionCache();
     }
 
     @Override
@@ -39,7 +41,7 @@ public class OoxmlLoader extends FileLoader {
         result.loaderType = type;
 
         try {
-            translate(options, result);
+            translate(options, result, true);
 
             callOnSuccess(result);
         } catch (Throwable e) {
@@ -51,22 +53,13 @@ public class OoxmlLoader extends FileLoader {
         }
     }
 
-    private void translate(Options options, Result result) throws Exception {
-        File cacheFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
-
-        if (lastCore != null) {
-            lastCore.close();
-        }
-
-        CoreWrapper core = new CoreWrapper();
-        try {
-            core.initialize();
-
-            lastCore = core;
-        } catch (Throwable e) {
-            crashManager.log(e);
-        }
+    @Override
+    public void prepare(Options options) {
+        sessionCache.prepare();
+    }
 
+    private void translate(Options options, Result result, boolean useTranslationCache) throws Exception {
+        File cacheFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
         File cacheDirectory = AndroidFileCache.getCacheDirectory(cacheFile);
 
         CoreWrapper.CoreOptions coreOptions = new CoreWrapper.CoreOptions();
@@ -76,9 +69,49 @@ public class OoxmlLoader extends FileLoader {
         coreOptions.editable = options.translatable;
         coreOptions.ooxml = true;
 
-        lastCoreOptions = coreOptions;
+        CoreWrapper.CoreResult coreResult = null;
+
+        CoreSessionCache.Session session = sessionCache.get(coreOptions);
+        if (session != null) {
+            coreResult = session.result;
+        }
+
+        // password protected documents are not persisted, otherwise they could be reopened without the password
+        String translationKey = null;
+        if (coreResult == null && useTranslationCache && options.password == null) {
+            try {
+                translationKey = TranslationCache.getKey(cacheFile, coreOptions);
+
+                coreResult = TranslationCache.get(context, translationKey);
+                if (coreResult == null) {
+                    coreOptions.outputPath = TranslationCache.prepareOutputDirectory(context, translationKey).getPath();
+                }
+            } catch (IOException e) {
+                crashManager.log(e);
+
+                translationKey = null;
+            }
+        }
+
+        if (coreResult == null) {
+            CoreWrapper core = sessionCache.newCore();
+
+            coreResult = parse(core, coreOptions, options);
+            if (coreResult.exception == null) {
+                sessionCache.put(new CoreSessionCache.Session(core, coreOptions, coreResult));
+
+                if (translationKey != null) {
+                    try {
+                        TranslationCache.put(context, translationKey, coreResult);
+                    } catch (IOException e) {
+                        crashManager.log(e);
+                    }
+                }
+            } else {
+                core.close();
+            }
+        }
 
-        CoreWrapper.CoreResult coreResult = lastCore.parse(coreOptions);
         if (coreResult.exception != null) {
             throw coreResult.exception;
         }
@@ -87,45 +120,61 @@ public class OoxmlLoader extends FileLoader {
         //  (not reported as DOCX prior)
         options.fileType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(coreResult.extension);
 
-        for (int i = 0; i < coreResult.pagePaths.size(); i++) {
-            File entryFile = new File(coreResult.pagePaths.get(i));
+        for (int i = 0; i < coreResult.pagePaths.length; i++) {
+            File entryFile = new File(coreResult.pagePaths[i]);
 
-            result.partTitles.add(coreResult.pageNames.get(i));
+            result.partTitles.add(coreResult.pageNames[i]);
             result.partUris.add(Uri.fromFile(entryFile));
         }
     }
 
     @Override
     public File retranslate(Options options, String htmlDiff) {
-        if (lastCore == null) {
-            // necessary if fragment was destroyed in the meanwhile - meaning the Loader is reinstantiated
+        File inputFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
+
+        CoreSessionCache.Session session = sessionCache.get(inputFile.getPath());
+        if (session == null) {
+            // necessary if fragment was destroyed in the meanwhile - meaning the Loader is reinstantiated -
+            // or if the session was evicted because other documents were opened since
 
             Result result = new Result();
             result.options = options;
 
             try {
-                translate(options, result);
+                // the pages could be served from TranslationCache, but editing requires a parsed document
+                translate(options, result, false);
             } catch (Exception e) {
                 crashManager.log(e);
 
                 return null;
             }
+
+            session = sessionCache.get(inputFile.getPath());
+            if (session == null) {
+                return null;
+            }
         }
 
-        File inputFile = new File(lastCoreOptions.inputPath);
         File inputCacheDirectory = AndroidFileCache.getCacheDirectory(inputFile);
         File tempFilePrefix = new File(inputCacheDirectory, "retranslate");
 
-        lastCoreOptions.outputPath = tempFilePrefix.getPath();
+        CoreWrapper.CoreOptions coreOptions = new CoreWrapper.CoreOptions();
+        coreOptions.outputPath = tempFilePrefix.getPath();
 
         try {
-            CoreWrapper.CoreResult result = lastCore.backtranslate(lastCoreOptions, htmlDiff);
+            CoreWrapper.CoreResult result = session.core.backtranslate(coreOptions, htmlDiff);
+            if (result.exception != null) {
+                throw result.exception;
+            }
 
             return new File(result.outputPath);
         } catch (Throwable e) {
             crashManager.log(e);
 
             return null;
+        } finally {
+            // the edit was applied to the document in memory, which no longer matches the translated pages
+            sessionCache.remove(inputFile.getPath());
         }
     }
 
@@ -133,9 +182,6 @@ public class OoxmlLoader extends FileLoader {
     public void close() {
         super.close();
 
-        if (lastCore != null) {
-            lastCore.close();
-            lastCore = null;
-        }
+        sessionCache.close();
     }
 }
@@ -17,6 +17,8 @@ public class PdfLoader extends FileLoader {
             "application/pdf", "application/x-pdf", "application/acrobat", "applications/vnd.pdf", "text/pdf", "text/x-pdf",
     };
 
+    private pdf2htmlEX preparedConverter;
+
     public PdfLoader(Context context) {
         super(context, LoaderType.PDF);
     }
@@ -36,6 +38,29 @@ public class PdfLoader extends FileLoader {
         return false;
     }
 
+    // the converter is created while holding the lock, so newConverter waits for it instead of
+    // extracting the same files at the same time
+    @Override
+    public synchronized void prepare(Options options) {
+        if (preparedConverter != null) {
+            return;
+        }
+
+        // the converter extracts its fonts and data files when it's created for the first time
+        preparedConverter = new pdf2htmlEX(context);
+    }
+
+    private synchronized pdf2htmlEX newConverter() {
+        pdf2htmlEX converter = preparedConverter;
+        preparedConverter = null;
+
+        if (converter == null) {
+            converter = new pdf2htmlEX(context);
+        }
+
+        return converter;
+    }
+
     @Override
     public void loadSync(Options options) {
         final Result result = new Result();
@@ -46,7 +71,7 @@ public class PdfLoader extends FileLoader {
             File cacheFile = AndroidFileCache.getCacheFile(context, options.cacheUri);
             File cacheDirectory = AndroidFileCache.getCacheDirectory(cacheFile);
 
-            pdf2htmlEX pdfConverter = new pdf2htmlEX(context).setInputPDF(cacheFile);
+            pdf2htmlEX pdfConverter = newConverter().setInputPDF(cacheFile);
             pdfConverter.setProcessOutline(false);
             pdfConverter.setBackgroundImageFormat(pdf2htmlEX.BackgroundImageFormat.JPG);
             pdfConverter.setDRM(false);
@@ -56,7 +81,15 @@ public class PdfLoader extends FileLoader {
                 pdfConverter.setEmbedExternalFont(false).setEmbedFont(false);
             }
 
+            throwIfCanceled(options);
+
+            // pdf2htmlEX offers no way to abort a running conversion, at least its result is dropped
             File output = pdfConverter.convert();
+            if (isCanceled(options)) {
+                output.delete();
+
+                throwIfCanceled(options);
+            }
 
             File htmlFile = new File(cacheDirectory, "pdf.html");
             StreamUtil.copy(output, htmlFile);
@@ -3,9 +3,9 @@ package at.tomtasche.reader.background;
 import android.content.Context;
 import android.net.Uri;
 import android.util.Base64;
-import android.util.Base64OutputStream;
 import android.webkit.MimeTypeMap;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -13,18 +13,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import at.tomtasche.reader.nonfree.ConfigManager;
+
 public class RawLoader extends FileLoader {
 
     private static final boolean USE_CORE_TXT = true;
 
+    // multiple of 3, so the chunks can be encoded independently
+    private static final int BASE64_CHUNK_SIZE = 3 * 16 * 1024;
+
     private static final String[] MIME_WHITELIST = {"text/", "image/", "video/", "audio/", "application/json", "application/xml", "application/zip"};
     private static final String[] MIME_BLACKLIST = {"image/vnd.dwg", "image/g3fax", "image/tiff", "image/vnd.djvu", "image/x-eps", "image/x-tga", "image/x-tga", "audio/amr", "video/3gpp", "video/quicktime", "text/calendar", "text/vcard", "text/rtf"};
 
-    private CoreWrapper lastCore;
-    private CoreWrapper.CoreOptions lastCoreOptions;
+    private final ConfigManager configManager;
+    private final CoreSessionCache sessionCache;
 
-    public RawLoader(Context context) {
+    public RawLoader(Context context, ConfigManager configManager) {
         super(context, LoaderType.RAW);
+
+        this.configManager = configManager;
+        sessionCache = new CoreSessionCache();
     }
 
     @Override
@@ -48,6 +56,13 @@ public class RawLoader extends FileLoader {
         return false;
     }
 
+    @Override
+    public void prepare(Options options) {
+        if (options.fileType.startsWith("text/") && !"csv".equals(options.fileExtension)) {
+            sessionCache.prepare();
+        }
+    }
+
     @Override
     public void loadSync(Options options) {
         final Result result = new Result();
@@ -62,112 +77,98 @@ public class RawLoader extends FileLoader {
             File cacheDirectory = AndroidFileCache.getCacheDirectory(cacheFile);
 
             Uri finalUri;
-            if (fileType.startsWith("image/")) {
-                File htmlFile = new File(cacheDirectory, "image.html");
-                InputStream htmlStream = context.getAssets().open("image.html");
-                StreamUtil.copy(htmlStream, htmlFile);
-
-                // use jpg as a workaround for most images
-                extension = "jpg";
-                if (fileType.contains("svg")) {
-                    // browser does not recognize SVG if it's not called ".svg"
-                    extension = "svg";
+            if (fileType.startsWith("image/") || fileType.startsWith("audio/") || fileType.startsWith("video/")) {
+                String name;
+                if (fileType.startsWith("image/")) {
+                    name = "image";
+
+                    // use jpg as a workaround for most images
+                    extension = "jpg";
+                    if (fileType.contains("svg")) {
+                        // browser does not recognize SVG if it's not called ".svg"
+                        extension = "svg";
+                    }
+                } else if (fileType.startsWith("audio/")) {
+                    name = "audio";
+
+                    // use mp3 as a workaround for most audio files
+                    extension = "mp3";
+                } else {
+                    name = "video";
+
+                    // use mp4 as a workaround for most videos
+                    extension = "mp4";
                 }
 
-                File imageFile = new File(cacheDirectory, "image." + extension);
-                StreamUtil.copy(cacheFile, imageFile);
-
-                finalUri = Uri.fromFile(htmlFile).buildUpon().appendQueryParameter("ext", extension).build();
-            } else if (fileType.startsWith("audio/")) {
-                File htmlFile = new File(cacheDirectory, "audio.html");
-                InputStream htmlStream = context.getAssets().open("audio.html");
-                StreamUtil.copy(htmlStream, htmlFile);
-
-                // use mp3 as a workaround for most images
-                extension = "mp3";
-
-                File audioFile = new File(cacheDirectory, "audio." + extension);
-                StreamUtil.copy(cacheFile, audioFile);
-
-                finalUri = Uri.fromFile(htmlFile).buildUpon().appendQueryParameter("ext", extension).build();
-            } else if (fileType.startsWith("video/")) {
-                File htmlFile = new File(cacheDirectory, "video.html");
-                InputStream htmlStream = context.getAssets().open("video.html");
-                StreamUtil.copy(htmlStream, htmlFile);
-
-                // use mp4 as a workaround for most images
-                extension = "mp4";
+                if (configManager.getBooleanConfig("disable_media_streaming")) {
+                    File htmlFile = new File(cacheDirectory, name + ".html");
+                    InputStream htmlStream = context.getAssets().open(name + ".html");
+                    StreamUtil.copy(htmlStream, htmlFile);
 
-                File videoFile = new File(cacheDirectory, "video." + extension);
-                StreamUtil.copy(cacheFile, videoFile);
+                    File mediaFile = new File(cacheDirectory, name + "." + extension);
+                    StreamUtil.copy(cacheFile, mediaFile);
 
-                finalUri = Uri.fromFile(htmlFile).buildUpon().appendQueryParameter("ext", extension).build();
+                    finalUri = Uri.fromFile(htmlFile).buildUpon().appendQueryParameter("ext", extension).build();
+                } else {
+                    // the page and the media are served by PageView, nothing has to be copied
+                    finalUri = ViewerServer.getPageUri(context, cacheFile, name + ".html", extension);
+                }
             } else if (extension.equals("csv")) {
-                File htmlFile = new File(cacheDirectory, "text.html");
-                InputStream htmlPrefixStream = context.getAssets().open("text-prefix.html");
-                InputStream htmlSuffixStream = context.getAssets().open("text-suffix.html");
+                if (!configManager.getBooleanConfig("disable_csv_table") && CsvTable.index(cacheFile)) {
+                    // the rows are served by PageView while scrolling instead of being parsed by the page
+                    finalUri = ViewerServer.getPageUri(context, cacheFile, "csv.html", extension);
+                } else if (configManager.getBooleanConfig("disable_shared_templates")) {
+                    File htmlFile = writePage(cacheFile, cacheDirectory, "text");
 
-                OutputStream outputStream = new FileOutputStream(htmlFile);
-                try {
-                    StreamUtil.copy(htmlPrefixStream, outputStream);
+                    File fontFile = new File(cacheDirectory, "text.ttf");
+                    InputStream fontStream = context.getAssets().open("text.ttf");
+                    StreamUtil.copy(fontStream, fontFile);
 
-                    writeBase64(cacheFile, cacheDirectory, outputStream);
+                    finalUri = Uri.fromFile(htmlFile).buildUpon().appendQueryParameter("ext", extension).build();
+                } else {
+                    writePayload(cacheFile, "text.html");
 
-                    StreamUtil.copy(htmlSuffixStream, outputStream);
-                } finally {
-                    outputStream.close();
+                    finalUri = ViewerServer.getPageUri(context, cacheFile, "text.html", extension);
                 }
-
-                File fontFile = new File(cacheDirectory, "text.ttf");
-                InputStream fontStream = context.getAssets().open("text.ttf");
-                StreamUtil.copy(fontStream, fontFile);
-
-                finalUri = Uri.fromFile(htmlFile).buildUpon().appendQueryParameter("ext", extension).build();
             } else if (fileType.startsWith("text/")) {
-                if (lastCore != null) {
-                    lastCore.close();
-                }
-
-                CoreWrapper core = new CoreWrapper();
-                try {
-                    core.initialize();
-
-                    lastCore = core;
-                } catch (Throwable e) {
-                    crashManager.log(e);
-                }
-
                 CoreWrapper.CoreOptions coreOptions = new CoreWrapper.CoreOptions();
                 coreOptions.inputPath = cacheFile.getPath();
                 coreOptions.outputPath = cacheDirectory.getPath();
                 coreOptions.txt = true;
 
-                lastCoreOptions = coreOptions;
+                CoreWrapper.CoreResult coreResult;
+
+                CoreSessionCache.Session session = sessionCache.get(coreOptions);
+                if (session != null) {
+                    coreResult = session.result;
+                } else {
+                    CoreWrapper core = sessionCache.newCore();
 
-                CoreWrapper.CoreResult coreResult = lastCore.parse(coreOptions);
-                if (coreResult.exception != null) {
-                    throw coreResult.exception;
+                    coreResult = parse(core, coreOptions, options);
+                    if (coreResult.exception != null) {
+                        core.close();
+
+                        throw coreResult.exception;
+                    }
+
+                    sessionCache.put(new CoreSessionCache.Session(core, coreOptions, coreResult));
                 }
 
-                File entryFile = new File(coreResult.pagePaths.get(0));
+                File entryFile = new File(coreResult.pagePaths[0]);
                 finalUri = Uri.fromFile(entryFile);
             } else if (fileType.startsWith("application/zip")) {
-                File htmlFile = new File(cacheDirectory, "zip.html");
-                InputStream htmlPrefixStream = context.getAssets().open("zip-prefix.html");
-                InputStream htmlSuffixStream = context.getAssets().open("zip-suffix.html");
-
-                OutputStream outputStream = new FileOutputStream(htmlFile);
-                try {
-                    StreamUtil.copy(htmlPrefixStream, outputStream);
+                if (!configManager.getBooleanConfig("disable_zip_archive") && ZipArchive.open(cacheFile) != null) {
+                    // only the central directory is read, entries are extracted by PageView once they are opened
+                    finalUri = ViewerServer.getPageUri(context, cacheFile, "archive.html", null);
+                } else if (configManager.getBooleanConfig("disable_shared_templates")) {
+                    File htmlFile = writePage(cacheFile, cacheDirectory, "zip");
 
-                    writeBase64(cacheFile, cacheDirectory, outputStream);
+                    finalUri = Uri.fromFile(htmlFile);
+                } else {
+                    writePayload(cacheFile, "zip.html");
 
-                    StreamUtil.copy(htmlSuffixStream, outputStream);
-                } finally {
-                    outputStream.close();
+                    finalUri = ViewerServer.getPageUri(context, cacheFile, "zip.html", null);
                 }
-
-                finalUri = Uri.fromFile(htmlFile);
             } else {
                 File renamedFile = new File(cacheDirectory, "temp." + extension);
                 StreamUtil.copy(cacheFile, renamedFile);
@@ -183,19 +184,64 @@ public class RawLoader extends FileLoader {
         }
     }
 
-    private void writeBase64(File cacheFile, File cacheDirectory, OutputStream outputStream) throws IOException {
-        // need to store it in a separate file first because BaseStream writes characters on close
-        FileInputStream fileInputStream = new FileInputStream(cacheFile);
-        File baseFile = new File(cacheDirectory, "tmp");
-        OutputStream baseFileOutputStream = new FileOutputStream(baseFile);
-        Base64OutputStream baseOutputStream = new Base64OutputStream(baseFileOutputStream, Base64.NO_WRAP);
+    // the templates are served by PageView, only the document has to be written
+    private void writePayload(File cacheFile, String page) throws IOException {
+        File payloadFile = ViewerServer.getPayloadFile(cacheFile, page);
+
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(payloadFile), BASE64_CHUNK_SIZE);
+        try {
+            writeBase64(cacheFile, outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private File writePage(File cacheFile, File cacheDirectory, String name) throws IOException {
+        File htmlFile = new File(cacheDirectory, name + ".html");
+        InputStream htmlPrefixStream = context.getAssets().open(name + "-prefix.html");
+        InputStream htmlSuffixStream = context.getAssets().open(name + "-suffix.html");
+
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(htmlFile), BASE64_CHUNK_SIZE);
         try {
-            StreamUtil.copy(fileInputStream, baseOutputStream);
+            StreamUtil.copy(htmlPrefixStream, outputStream);
+
+            writeBase64(cacheFile, outputStream);
+
+            StreamUtil.copy(htmlSuffixStream, outputStream);
         } finally {
-            baseOutputStream.close();
+            outputStream.close();
+        }
+
+        return htmlFile;
+    }
+
+    // encoding whole groups of 3 bytes never produces padding, so only the last chunk can end with "="
+    private void writeBase64(File cacheFile, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[BASE64_CHUNK_SIZE];
+
+        try (InputStream inputStream = new FileInputStream(cacheFile)) {
+            while (true) {
+                int length = 0;
+                int read;
+                while (length < buffer.length && (read = inputStream.read(buffer, length, buffer.length - length)) >= 0) {
+                    length += read;
+                }
+
+                if (length > 0) {
+                    outputStream.write(Base64.encode(buffer, 0, length, Base64.NO_WRAP));
+                }
+
+                if (length < buffer.length) {
+                    break;
+                }
+            }
         }
+    }
+
+    @Override
+    public void close() {
+        super.close();
 
-        InputStream baseFileInputStream = new FileInputStream(baseFile);
-        StreamUtil.copy(baseFileInputStream, outputStream);
+        sessionCache.close();
     }
 }
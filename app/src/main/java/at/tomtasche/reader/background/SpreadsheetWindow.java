@@ -0,0 +1,210 @@
+package at.tomtasche.reader.background;
+
+import android.content.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * splits a sheet translated by the core into a small page holding everything but the rows, the rows
+ * themselves and an index of their offsets. the page only keeps the rows around the viewport in the
+ * DOM and fetches the others from {@link #getRows(int, int)} while scrolling.
+ */
+public class SpreadsheetWindow implements TableWindow {
+
+    private static final String ROWS_SUFFIX = ".rows";
+    private static final String INDEX_SUFFIX = ".index";
+
+    // smaller sheets are laid out by the WebView in reasonable time
+    private static final int MIN_ROWS = 1000;
+    // keep in sync with MAX_ROWS in spreadsheet-window.html
+    private static final int MAX_ROWS_PER_REQUEST = 500;
+
+    private static final String WINDOW_ROWS = "<tr><td id=\"odr-window-top\" style=\"height: 0px; padding: 0; border: 0;\"></td></tr>"
+            + "<tr><td id=\"odr-window-bottom\" style=\"height: 0px; padding: 0; border: 0;\"></td></tr>";
+
+    private final File rowsFile;
+    private final LongBuffer offsets;
+
+    private SpreadsheetWindow(File rowsFile, LongBuffer offsets) {
+        this.rowsFile = rowsFile;
+        this.offsets = offsets;
+    }
+
+    /**
+     * replaces the given page with a windowed one if the sheet has enough rows for it to pay off
+     *
+     * @return true if the page is windowed now
+     */
+    public static boolean split(Context context, File page) throws IOException {
+        File rowsFile = new File(page.getPath() + ROWS_SUFFIX);
+        File indexFile = new File(page.getPath() + INDEX_SUFFIX);
+        if (isSplit(page, indexFile)) {
+            return true;
+        }
+
+        File tempIndexFile = new File(indexFile.getPath() + ".tmp");
+        File tempPage = new File(page.getPath() + ".tmp");
+
+        long firstRow = -1;
+        long lastRow = -1;
+        long rowsEnd = -1;
+        int rowCount = 0;
+
+        try (FileChannel channel = new FileInputStream(page).getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return false;
+            }
+
+            // the rows are never held on the heap, neither while indexing nor while serving them
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempIndexFile)))) {
+                int limit = buffer.limit();
+                for (int i = 0; i < limit - 4; i++) {
+                    if (buffer.get(i) != '<') {
+                        continue;
+                    }
+
+                    byte first = buffer.get(i + 1);
+                    if (first == 't' && buffer.get(i + 2) == 'r' && isTagEnd(buffer.get(i + 3))) {
+                        if (firstRow < 0) {
+                            firstRow = i;
+                        }
+
+                        lastRow = i;
+
+                        index.writeLong(i);
+                        rowCount++;
+                    } else if (first == '/' && buffer.get(i + 2) == 't' && buffer.get(i + 3) == 'r' && buffer.get(i + 4) == '>') {
+                        rowsEnd = i + 5;
+                    }
+                }
+
+                // the last row ends where the following content starts
+                index.writeLong(rowsEnd);
+            }
+
+            if (rowCount < MIN_ROWS || rowsEnd <= lastRow) {
+                tempIndexFile.delete();
+
+                return false;
+            }
+
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempPage))) {
+                write(buffer, 0, (int) firstRow, out);
+                out.write(WINDOW_ROWS.getBytes(StandardCharsets.UTF_8));
+
+                byte[] suffix = new byte[(int) (size - rowsEnd)];
+                buffer.position((int) rowsEnd);
+                buffer.get(suffix);
+
+                String suffixString = new String(suffix, StandardCharsets.UTF_8);
+                String script = readScript(context);
+
+                int bodyEnd = suffixString.lastIndexOf("</body>");
+                if (bodyEnd >= 0) {
+                    suffixString = suffixString.substring(0, bodyEnd) + script + suffixString.substring(bodyEnd);
+                } else {
+                    suffixString = suffixString + script;
+                }
+
+                out.write(suffixString.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        // the index is moved last, a page without it is treated as not windowed
+        if (!page.renameTo(rowsFile) || !tempPage.renameTo(page) || !tempIndexFile.renameTo(indexFile)) {
+            throw new IOException("could not replace page with windowed one");
+        }
+
+        indexFile.setLastModified(Math.max(System.currentTimeMillis(), page.lastModified()));
+
+        return true;
+    }
+
+    /**
+     * @return null if the page was not windowed
+     */
+    public static SpreadsheetWindow open(File page) {
+        File rowsFile = new File(page.getPath() + ROWS_SUFFIX);
+        File indexFile = new File(page.getPath() + INDEX_SUFFIX);
+        if (!isSplit(page, indexFile) || !rowsFile.exists()) {
+            return null;
+        }
+
+        try (FileChannel channel = new FileInputStream(indexFile).getChannel()) {
+            // stays valid after the channel is closed
+            LongBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asLongBuffer();
+
+            return new SpreadsheetWindow(rowsFile, offsets);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // the core overwrites the page if the document is translated again, which makes the index outdated
+    private static boolean isSplit(File page, File indexFile) {
+        return indexFile.exists() && page.exists() && indexFile.lastModified() >= page.lastModified();
+    }
+
+    private static boolean isTagEnd(byte b) {
+        return b == '>' || b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static void write(ByteBuffer buffer, int start, int end, OutputStream out) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        buffer.position(start);
+        while (buffer.position() < end) {
+            int length = Math.min(chunk.length, end - buffer.position());
+            buffer.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    private static String readScript(Context context) throws IOException {
+        ByteArrayOutputStream script = new ByteArrayOutputStream();
+        InputStream in = context.getAssets().open("spreadsheet-window.html");
+        StreamUtil.copy(in, script);
+
+        return script.toString(StreamUtil.ENCODING);
+    }
+
+    @Override
+    public int getRowCount() {
+        return offsets.limit() - 1;
+    }
+
+    @Override
+    public String getRows(int from, int to) throws IOException {
+        from = Math.max(0, from);
+        to = Math.min(Math.min(getRowCount(), to), from + MAX_ROWS_PER_REQUEST);
+        if (from >= to) {
+            return "";
+        }
+
+        long start = offsets.get(from);
+        long end = offsets.get(to);
+
+        byte[] rows = new byte[(int) (end - start)];
+        try (RandomAccessFile file = new RandomAccessFile(rowsFile, "r")) {
+            file.seek(start);
+            file.readFully(rows);
+        }
+
+        return new String(rows, StandardCharsets.UTF_8);
+    }
+}
@@ -1,16 +1,31 @@
 package at.tomtasche.reader.background;
 
+import android.os.CancellationSignal;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 public class StreamUtil {
 
     public static final String ENCODING = "UTF-8";
 
+    private static final int CHANNEL_BUFFER_SIZE = 256 * 1024;
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int HEADER_SIZE = MimeSniffer.HEADER_SIZE;
+
     public static void copy(File src, File dst) throws IOException {
         InputStream in = new FileInputStream(src);
         copy(in, dst);
@@ -21,10 +36,112 @@ public class StreamUtil {
         copy(in, out);
     }
 
-    public static void copy(InputStream in, File dst) throws IOException {
-        OutputStream out = new FileOutputStream(dst);
-        copy(in, out);
-        out.close();
+    public static long copy(FileDescriptor src, File dst) throws IOException {
+        return copy(src, dst, null, null);
+    }
+
+    /**
+     * copies from the current position of the descriptor. regular files are transferred by the kernel,
+     * anything else (e.g. pipes of content providers) is read in chunks.
+     *
+     * @param cancellationSignal checked between chunks, may be null
+     * @return number of bytes copied
+     */
+    public static long copy(FileDescriptor src, File dst, HeaderListener headerListener, CancellationSignal cancellationSignal) throws IOException {
+        // the descriptor is owned by the caller, so the input channel must not be closed here
+        FileChannel in = new FileInputStream(src).getChannel();
+        try (FileChannel out = new RandomAccessFile(dst, "rw").getChannel()) {
+            out.truncate(0);
+
+            // transferFrom needs a seekable source, it fails with ESPIPE on pipes and sockets
+            if (!isRegularFile(src)) {
+                return copy(in, out, headerListener, cancellationSignal);
+            }
+
+            long position = 0;
+            long transferred;
+            // transferFrom returns 0 once a blocking source reached its end
+            while ((transferred = out.transferFrom(in, position, headerListener != null ? HEADER_SIZE - position : TRANSFER_CHUNK_SIZE)) > 0) {
+                position += transferred;
+
+                if (cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+
+                if (headerListener != null && position >= HEADER_SIZE) {
+                    notifyHeader(out, position, headerListener);
+                    headerListener = null;
+                }
+            }
+
+            if (headerListener != null) {
+                notifyHeader(out, position, headerListener);
+            }
+
+            return position;
+        }
+    }
+
+    private static boolean isRegularFile(FileDescriptor fd) {
+        try {
+            return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    public static long copy(InputStream in, File dst) throws IOException {
+        return copy(in, dst, null, null);
+    }
+
+    /**
+     * @param cancellationSignal checked between chunks, may be null
+     * @return number of bytes copied
+     */
+    public static long copy(InputStream in, File dst, HeaderListener headerListener, CancellationSignal cancellationSignal) throws IOException {
+        try (ReadableByteChannel inChannel = Channels.newChannel(in);
+             FileChannel out = new RandomAccessFile(dst, "rw").getChannel()) {
+            out.truncate(0);
+
+            return copy(inChannel, out, headerListener, cancellationSignal);
+        }
+    }
+
+    private static long copy(ReadableByteChannel in, FileChannel out, HeaderListener headerListener, CancellationSignal cancellationSignal) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+
+        long size = 0;
+        while (in.read(buffer) >= 0 || buffer.position() > 0) {
+            buffer.flip();
+            size += out.write(buffer);
+            buffer.compact();
+
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+
+            if (headerListener != null && size >= HEADER_SIZE) {
+                notifyHeader(out, size, headerListener);
+                headerListener = null;
+            }
+        }
+
+        if (headerListener != null) {
+            notifyHeader(out, size, headerListener);
+        }
+
+        return size;
+    }
+
+    private static void notifyHeader(FileChannel channel, long size, HeaderListener headerListener) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate((int) Math.min(size, HEADER_SIZE));
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+
+        headerListener.onHeader(header.array(), header.position());
     }
 
     // taken from: https://stackoverflow.com/a/9293885/198996
@@ -42,4 +159,12 @@ public class StreamUtil {
             in.close();
         }
     }
+
+    public interface HeaderListener {
+
+        /**
+         * called once the first bytes of a copy are written, while the rest is still being copied
+         */
+        void onHeader(byte[] header, int length);
+    }
 }
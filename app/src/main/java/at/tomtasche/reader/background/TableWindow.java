@@ -0,0 +1,17 @@
+package at.tomtasche.reader.background;
+
+import java.io.IOException;
+
+/**
+ * rows of a table that are too many for the WebView to lay out at once. the page only keeps the rows
+ * around the viewport in the DOM and fetches the others while scrolling, see spreadsheet-window.html.
+ */
+public interface TableWindow {
+
+    int getRowCount();
+
+    /**
+     * @return the HTML of the rows from (inclusive) to (exclusive)
+     */
+    String getRows(int from, int to) throws IOException;
+}
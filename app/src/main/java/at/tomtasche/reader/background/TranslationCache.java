@@ -0,0 +1,257 @@
+package at.tomtasche.reader.background;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * persists the HTML generated by the core, keyed by the content of the document and the options it
+ * was translated with. reopening an unchanged document reuses the pages instead of translating again.
+ */
+public class TranslationCache {
+
+    private static final String DIRECTORY_NAME = "translations";
+    private static final String INDEX_FILENAME = "index.json";
+
+    private static final long MAX_SIZE = 128 * 1024 * 1024;
+
+    private static File getRootDirectory(Context context) {
+        File directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        return directory;
+    }
+
+    public static String getKey(File file, CoreWrapper.CoreOptions options) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+
+        key.append('-');
+        key.append(options.editable ? 'e' : '-');
+        key.append(options.paging ? 'p' : '-');
+        key.append(options.ooxml ? 'o' : '-');
+        key.append(options.txt ? 't' : '-');
+
+        return key.toString();
+    }
+
+    /**
+     * @return the previously translated pages or null if the document was not translated with these options yet
+     */
+    public static synchronized CoreWrapper.CoreResult get(Context context, String key) {
+        File directory = new File(getRootDirectory(context), key);
+        File indexFile = new File(directory, INDEX_FILENAME);
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject index;
+            try (Reader reader = new InputStreamReader(new FileInputStream(indexFile), StreamUtil.ENCODING)) {
+                StringBuilder builder = new StringBuilder();
+                char[] buffer = new char[4096];
+                int length;
+                while ((length = reader.read(buffer)) > 0) {
+                    builder.append(buffer, 0, length);
+                }
+
+                index = new JSONObject(builder.toString());
+            }
+
+            JSONArray pages = index.getJSONArray("pages");
+
+            CoreWrapper.CoreResult result = new CoreWrapper.CoreResult();
+            result.extension = index.optString("extension", null);
+            result.pageNames = new String[pages.length()];
+            result.pagePaths = new String[pages.length()];
+
+            for (int i = 0; i < pages.length(); i++) {
+                JSONObject page = pages.getJSONObject(i);
+
+                File pageFile = new File(directory, page.getString("file"));
+                if (!pageFile.exists()) {
+                    remove(directory);
+
+                    return null;
+                }
+
+                result.pageNames[i] = page.isNull("name") ? null : page.getString("name");
+                result.pagePaths[i] = pageFile.getPath();
+            }
+
+            // lastModified of the index is used to evict least recently used translations first
+            indexFile.setLastModified(System.currentTimeMillis());
+
+            return result;
+        } catch (IOException | JSONException e) {
+            remove(directory);
+
+            return null;
+        }
+    }
+
+    /**
+     * @return an empty directory the core can write the pages for the given key to
+     */
+    public static synchronized File prepareOutputDirectory(Context context, String key) {
+        File directory = new File(getRootDirectory(context), key);
+        remove(directory);
+        directory.mkdirs();
+
+        return directory;
+    }
+
+    /**
+     * marks the pages written to {@link #prepareOutputDirectory(Context, String)} as complete
+     */
+    public static synchronized void put(Context context, String key, CoreWrapper.CoreResult result) throws IOException {
+        File root = getRootDirectory(context);
+        File directory = new File(root, key);
+
+        try {
+            JSONArray pages = new JSONArray();
+            for (int i = 0; i < result.pagePaths.length; i++) {
+                String pagePath = result.pagePaths[i];
+                String directoryPath = directory.getPath() + File.separator;
+                if (!pagePath.startsWith(directoryPath)) {
+                    // page was not written to the cache directory, nothing to reuse later
+                    remove(directory);
+
+                    return;
+                }
+
+                JSONObject page = new JSONObject();
+                page.put("name", result.pageNames[i] == null ? JSONObject.NULL : result.pageNames[i]);
+                page.put("file", pagePath.substring(directoryPath.length()));
+
+                pages.put(page);
+            }
+
+            JSONObject index = new JSONObject();
+            index.put("extension", result.extension);
+            index.put("pages", pages);
+
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, INDEX_FILENAME)), StreamUtil.ENCODING)) {
+                writer.write(index.toString());
+            }
+        } catch (JSONException e) {
+            remove(directory);
+
+            throw new IOException(e);
+        }
+
+        trim(root, directory);
+    }
+
+    private static void trim(File root, File keep) {
+        File[] directories = root.listFiles(File::isDirectory);
+        if (directories == null) {
+            return;
+        }
+
+        long[] sizes = new long[directories.length];
+        long totalSize = 0;
+        for (int i = 0; i < directories.length; i++) {
+            sizes[i] = getSize(directories[i]);
+            totalSize += sizes[i];
+        }
+
+        if (totalSize <= MAX_SIZE) {
+            return;
+        }
+
+        Integer[] order = new Integer[directories.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        long[] lastUsed = new long[directories.length];
+        for (int i = 0; i < directories.length; i++) {
+            // incomplete translations have no index and are evicted first
+            lastUsed[i] = new File(directories[i], INDEX_FILENAME).lastModified();
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastUsed[a], lastUsed[b]);
+            }
+        });
+
+        for (int i : order) {
+            if (totalSize <= MAX_SIZE) {
+                break;
+            }
+
+            if (directories[i].equals(keep)) {
+                continue;
+            }
+
+            remove(directories[i]);
+            totalSize -= sizes[i];
+        }
+    }
+
+    private static long getSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+
+        long size = 0;
+
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                size += getSize(child);
+            }
+        }
+
+        return size;
+    }
+
+    private static void remove(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                remove(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,348 @@
+package at.tomtasche.reader.background;
+
+import android.content.Context;
+import android.net.Uri;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * serves the viewers of {@link RawLoader} to the page, so their templates don't have to be copied
+ * into the cache directory of every document that is opened:
+ * <ul>
+ * <li>images, audio and video are streamed straight from the cached copy of the document. media
+ * elements ask for the parts they need using range requests, so a video of a few GB can be opened
+ * and seeked in right away.</li>
+ * <li>text and zip pages are put together from the templates in the assets and the encoded payload,
+ * which is the only part that is written for every document.</li>
+ * <li>big CSV files are shown by a page without any payload, the rows are served by {@link CsvTable}
+ * through the JavaScript interface of the page.</li>
+ * <li>the same goes for archives, their entries are listed by {@link ZipArchive}.</li>
+ * </ul>
+ * pages are loaded from a virtual origin that is answered by {@link #handle(Context, WebResourceRequest)}:
+ * <pre>
+ * https://appassets.androidplatform.net/viewer/cache.123/cached-file.tmp/video.html?ext=mp4
+ * https://appassets.androidplatform.net/viewer/cache.123/cached-file.tmp/video.mp4
+ * </pre>
+ * only the names above are answered, and only for the cached copy of a document or an entry extracted
+ * next to it. nothing else in the cache directory, e.g. the pages of other loaders, can be requested.
+ */
+public class ViewerServer {
+
+    private static final String HOST = "appassets.androidplatform.net";
+    private static final String PATH_PREFIX = "viewer";
+
+    // served from the assets as they are
+    private static final String[] TEMPLATES = {"image.html", "audio.html", "video.html", "text.ttf", "archive.html"};
+    // served as prefix, payload and suffix
+    private static final String[] COMPOSED_PAGES = {"text.html", "zip.html"};
+
+    // rows are served by CsvTable
+    private static final String CSV_PAGE = "csv.html";
+
+    // the document itself, named the way the media pages ask for it. keep in sync with RawLoader
+    private static final String[] MEDIA_NAMES = {"image.jpg", "image.svg", "audio.mp3", "video.mp4"};
+
+    private static final String PAYLOAD_EXTENSION = ".base64";
+
+    public static Uri getPageUri(Context context, File cacheFile, String page, String extension) {
+        File rootDirectory = AndroidFileCache.getRootCacheDirectory(context);
+        String cachePath = cacheFile.getAbsolutePath().substring(rootDirectory.getAbsolutePath().length() + 1);
+
+        Uri.Builder builder = new Uri.Builder().scheme("https").authority(HOST).appendPath(PATH_PREFIX);
+        for (String segment : cachePath.split("/")) {
+            builder.appendPath(segment);
+        }
+
+        builder.appendPath(page);
+        if (extension != null) {
+            builder.appendQueryParameter("ext", extension);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @return the file the payload of the given page has to be written to, e.g. text.base64 for text.html
+     */
+    public static File getPayloadFile(File cacheFile, String page) {
+        String name = getBaseName(page) + PAYLOAD_EXTENSION;
+
+        return new File(AndroidFileCache.getCacheDirectory(cacheFile), name);
+    }
+
+    /**
+     * @return the cached document if the url belongs to the given page of this server, null otherwise
+     */
+    public static File getDocument(Context context, Uri url, String page) {
+        if (!"https".equals(url.getScheme()) || !HOST.equals(url.getHost())) {
+            return null;
+        }
+
+        List<String> segments = url.getPathSegments();
+        if (segments.size() < 3 || !PATH_PREFIX.equals(segments.get(0)) || !page.equals(segments.get(segments.size() - 1))) {
+            return null;
+        }
+
+        try {
+            return getCacheFile(context, segments.subList(1, segments.size() - 1));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return null if the request is not meant for this server, the WebView handles it itself then
+     */
+    public static WebResourceResponse handle(Context context, WebResourceRequest request) {
+        Uri url = request.getUrl();
+        if (!"https".equals(url.getScheme()) || !HOST.equals(url.getHost())) {
+            return null;
+        }
+
+        List<String> segments = url.getPathSegments();
+        if (segments.size() < 3 || !PATH_PREFIX.equals(segments.get(0))) {
+            return null;
+        }
+
+        String name = segments.get(segments.size() - 1);
+
+        try {
+            File cacheFile = getCacheFile(context, segments.subList(1, segments.size() - 1));
+            if (cacheFile == null || !cacheFile.isFile()) {
+                return createErrorResponse(404, "Not Found", null);
+            }
+
+            for (String template : TEMPLATES) {
+                if (template.equals(name)) {
+                    return new WebResourceResponse(getMimeType(name), StreamUtil.ENCODING, context.getAssets().open(template));
+                }
+            }
+
+            for (String page : COMPOSED_PAGES) {
+                if (page.equals(name)) {
+                    File payloadFile = getPayloadFile(cacheFile, page);
+                    if (!payloadFile.isFile()) {
+                        return createErrorResponse(404, "Not Found", null);
+                    }
+
+                    return createPageResponse(context, page, new FileInputStream(payloadFile));
+                }
+            }
+
+            if (CSV_PAGE.equals(name)) {
+                // the same script windows the rows of big spreadsheets
+                return createPageResponse(context, CSV_PAGE, context.getAssets().open("spreadsheet-window.html"));
+            }
+
+            for (String media : MEDIA_NAMES) {
+                if (media.equals(name)) {
+                    return createFileResponse(cacheFile, getMimeType(name), getHeader(request, "Range"));
+                }
+            }
+
+            return createErrorResponse(404, "Not Found", null);
+        } catch (IOException e) {
+            return createErrorResponse(500, "Internal Server Error", null);
+        }
+    }
+
+    private static String getBaseName(String name) {
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    private static String getMimeType(String name) {
+        String extension = name.substring(name.lastIndexOf('.') + 1);
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        if (mimeType == null) {
+            return "application/octet-stream";
+        }
+
+        return mimeType;
+    }
+
+    private static WebResourceResponse createPageResponse(Context context, String page, InputStream payload) throws IOException {
+        String baseName = getBaseName(page);
+
+        List<InputStream> parts = new ArrayList<>();
+        parts.add(context.getAssets().open(baseName + "-prefix.html"));
+        parts.add(payload);
+        parts.add(context.getAssets().open(baseName + "-suffix.html"));
+
+        return new WebResourceResponse("text/html", StreamUtil.ENCODING, new SequenceInputStream(Collections.enumeration(parts)));
+    }
+
+    // only cached documents are served, no matter what the page asks for
+    private static File getCacheFile(Context context, List<String> segments) throws IOException {
+        File rootDirectory = AndroidFileCache.getRootCacheDirectory(context);
+
+        File file = rootDirectory;
+        for (String segment : segments) {
+            // ".." would still pass the checks below once it is resolved
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return null;
+            }
+
+            file = new File(file, segment);
+        }
+
+        String rootPath = rootDirectory.getCanonicalPath() + File.separator;
+        if (!file.getCanonicalPath().startsWith(rootPath) || !AndroidFileCache.isCacheFile(context, file)) {
+            return null;
+        }
+
+        return file;
+    }
+
+    private static String getHeader(WebResourceRequest request, String name) {
+        Map<String, String> headers = request.getRequestHeaders();
+        if (headers == null) {
+            return null;
+        }
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    private static WebResourceResponse createFileResponse(File file, String mimeType, String range) throws IOException {
+        long size = file.length();
+
+        long start = 0;
+        long end = size - 1;
+        boolean partial = false;
+
+        // only a single range is supported, that's all media elements ask for
+        if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+            String[] bounds = range.substring("bytes=".length()).trim().split("-", -1);
+            try {
+                if (bounds[0].isEmpty()) {
+                    // suffix range: the last n bytes
+                    start = Math.max(0, size - Long.parseLong(bounds[1]));
+                } else {
+                    start = Long.parseLong(bounds[0]);
+                    if (!bounds[1].isEmpty()) {
+                        end = Math.min(end, Long.parseLong(bounds[1]));
+                    }
+                }
+
+                partial = true;
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // malformed ranges are ignored and the whole file is sent
+                start = 0;
+                end = size - 1;
+            }
+
+            if (partial && (start >= size || start > end)) {
+                return createErrorResponse(416, "Range Not Satisfiable", "bytes */" + size);
+            }
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept-Ranges", "bytes");
+        headers.put("Content-Length", String.valueOf(end - start + 1));
+        if (partial) {
+            headers.put("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            inputStream.getChannel().position(start);
+        } catch (IOException e) {
+            inputStream.close();
+
+            throw e;
+        }
+
+        InputStream data = new RangeInputStream(inputStream, end - start + 1);
+        if (partial) {
+            return new WebResourceResponse(mimeType, null, 206, "Partial Content", headers, data);
+        }
+
+        return new WebResourceResponse(mimeType, null, 200, "OK", headers, data);
+    }
+
+    private static WebResourceResponse createErrorResponse(int statusCode, String reasonPhrase, String contentRange) {
+        Map<String, String> headers = new HashMap<>();
+        if (contentRange != null) {
+            headers.put("Content-Range", contentRange);
+        }
+
+        return new WebResourceResponse("text/plain", StreamUtil.ENCODING, statusCode, reasonPhrase, headers, new ByteArrayInputStream(new byte[0]));
+    }
+
+    // stops at the end of the requested range instead of the end of the file
+    private static class RangeInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read();
+            if (read >= 0) {
+                remaining--;
+            }
+
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
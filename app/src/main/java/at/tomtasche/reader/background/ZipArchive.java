@@ -0,0 +1,202 @@
+package at.tomtasche.reader.background;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * lists the entries of a ZIP file from its central directory, so archives of any size open right away.
+ * the data of an entry is only read once it is extracted to be opened on its own.
+ */
+public class ZipArchive {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final List<ZipCentralDirectory.Entry> entries;
+
+    private ZipArchive(File file, List<ZipCentralDirectory.Entry> entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    /**
+     * @return null if the archive can't be read, e.g. because it needs ZIP64
+     */
+    public static ZipArchive open(File file) {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            List<ZipCentralDirectory.Entry> entries = ZipCentralDirectory.read(channel);
+            if (entries == null) {
+                return null;
+            }
+
+            return new ZipArchive(file, entries);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the name of the entry without the folders it is in
+     */
+    public static String getFileName(String name) {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")) {
+            return "entry";
+        }
+
+        return fileName;
+    }
+
+    /**
+     * @param folder path of the folder ending with a slash, empty for the root of the archive
+     * @return the HTML of a table row for every folder and file in the given folder. folders carry their
+     * path in data-path, files their name in data-name.
+     */
+    public String getListing(String folder) {
+        // some archives don't list folders explicitly, they are only known from the entries in them
+        TreeSet<String> folders = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        List<ZipCentralDirectory.Entry> files = new ArrayList<>();
+        for (ZipCentralDirectory.Entry entry : entries) {
+            if (!entry.name.startsWith(folder) || entry.name.length() == folder.length()) {
+                continue;
+            }
+
+            int slash = entry.name.indexOf('/', folder.length());
+            if (slash >= 0) {
+                folders.add(entry.name.substring(0, slash + 1));
+            } else {
+                files.add(entry);
+            }
+        }
+
+        Collections.sort(files, (a, b) -> a.name.compareToIgnoreCase(b.name));
+
+        StringBuilder html = new StringBuilder();
+        for (String path : folders) {
+            html.append("<tr class=\"odr-folder\" data-path=\"");
+            CsvTable.appendEscaped(html, path);
+            html.append("\"><td>");
+            CsvTable.appendEscaped(html, path.substring(folder.length()));
+            html.append("</td><td></td></tr>");
+        }
+
+        for (ZipCentralDirectory.Entry entry : files) {
+            html.append("<tr class=\"odr-file\" data-name=\"");
+            CsvTable.appendEscaped(html, entry.name);
+            html.append("\"><td>");
+            CsvTable.appendEscaped(html, entry.name.substring(folder.length()));
+            html.append("</td><td class=\"odr-size\">");
+            html.append(formatSize(entry.size));
+            html.append("</td></tr>");
+        }
+
+        return html.toString();
+    }
+
+    private static String formatSize(long size) {
+        if (size < 1024) {
+            return size + " B";
+        } else if (size < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KB", size / 1024.0);
+        } else if (size < 1024 * 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f MB", size / 1024.0 / 1024.0);
+        }
+
+        return String.format(Locale.ROOT, "%.1f GB", size / 1024.0 / 1024.0 / 1024.0);
+    }
+
+    /**
+     * writes the data of the given entry to the destination, without reading any other entry. the
+     * destination is deleted if the entry can't be extracted completely.
+     */
+    public void extract(String name, File dst) throws IOException {
+        ZipCentralDirectory.Entry entry = null;
+        for (ZipCentralDirectory.Entry candidate : entries) {
+            if (candidate.name.equals(name) && !candidate.isDirectory()) {
+                entry = candidate;
+                break;
+            }
+        }
+
+        if (entry == null) {
+            throw new FileNotFoundException(name);
+        }
+
+        if (entry.isEncrypted()) {
+            throw new IOException("entry is encrypted: " + name);
+        }
+
+        try {
+            extract(entry, dst);
+        } catch (IOException | RuntimeException e) {
+            // a partial entry must not be opened later on
+            dst.delete();
+
+            throw e;
+        }
+    }
+
+    private void extract(ZipCentralDirectory.Entry entry, File dst) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long dataOffset = ZipCentralDirectory.getDataOffset(channel, entry);
+
+            if (entry.method == ZipCentralDirectory.METHOD_STORED) {
+                try (FileChannel out = new FileOutputStream(dst).getChannel()) {
+                    long position = 0;
+                    while (position < entry.size) {
+                        long transferred = channel.transferTo(dataOffset + position, entry.size - position, out);
+                        if (transferred <= 0) {
+                            throw new IOException("unexpected end of " + entry.name);
+                        }
+
+                        position += transferred;
+                    }
+                }
+            } else if (entry.method == ZipCentralDirectory.METHOD_DEFLATED) {
+                channel.position(dataOffset);
+
+                // the inflater stops at the end of the entry on its own
+                Inflater inflater = new Inflater(true);
+                try (OutputStream out = new FileOutputStream(dst)) {
+                    CheckedInputStream in = new CheckedInputStream(new InflaterInputStream(Channels.newInputStream(channel), inflater), new CRC32());
+
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    long size = 0;
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        size += read;
+                        // the declared size is all that is inflated, a few KB must not fill up the storage
+                        if (size > entry.size) {
+                            throw new IOException("entry is bigger than declared: " + entry.name);
+                        }
+
+                        out.write(buffer, 0, read);
+                    }
+
+                    if (size != entry.size || in.getChecksum().getValue() != entry.crc) {
+                        throw new IOException("entry is corrupted: " + entry.name);
+                    }
+                } finally {
+                    inflater.end();
+                }
+            } else {
+                throw new IOException("unsupported compression method " + entry.method + ": " + entry.name);
+            }
+        }
+    }
+}
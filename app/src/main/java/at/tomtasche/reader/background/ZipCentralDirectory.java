@@ -0,0 +1,154 @@
+package at.tomtasche.reader.background;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * reads the entries of a ZIP file from its central directory, without touching their data, so archives
+ * of any size can be looked into.
+ */
+class ZipCentralDirectory {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int FLAG_ENCRYPTED = 0x01;
+
+    // returns null for ZIP64 and anything else the callers can't handle reliably
+    static List<Entry> read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < END_OF_CENTRAL_DIRECTORY_SIZE) {
+            return null;
+        }
+
+        int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, size - tailSize, tailSize);
+
+        int endOffset = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                endOffset = i;
+                break;
+            }
+        }
+
+        if (endOffset < 0) {
+            return null;
+        }
+
+        int disk = tail.getShort(endOffset + 4) & 0xFFFF;
+        int entryCount = tail.getShort(endOffset + 10) & 0xFFFF;
+        long directorySize = tail.getInt(endOffset + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(endOffset + 16) & 0xFFFFFFFFL;
+        if (disk != 0 || entryCount == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            return null;
+        }
+
+        if (directoryOffset + directorySize > size) {
+            return null;
+        }
+
+        ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+
+        List<Entry> entries = new ArrayList<>(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directory.limit() || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                return null;
+            }
+
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            int headerLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            if (position + headerLength > directory.limit()) {
+                return null;
+            }
+
+            byte[] header = new byte[headerLength];
+            directory.position(position);
+            directory.get(header);
+
+            Entry entry = new Entry(ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN));
+            if (entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL || entry.localHeaderOffset == 0xFFFFFFFFL) {
+                return null;
+            }
+
+            entries.add(entry);
+            position += headerLength;
+        }
+
+        return entries;
+    }
+
+    static long getDataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer header = read(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("missing local header of " + entry.name);
+        }
+
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of package");
+            }
+        }
+
+        buffer.flip();
+
+        return buffer;
+    }
+
+    static class Entry {
+
+        final String name;
+        final int flags;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        // takes the central directory record including name, extra field and comment
+        Entry(ByteBuffer centralHeader) {
+            int nameLength = centralHeader.getShort(28) & 0xFFFF;
+            name = new String(centralHeader.array(), CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+
+            flags = centralHeader.getShort(8) & 0xFFFF;
+            method = centralHeader.getShort(10) & 0xFFFF;
+            crc = centralHeader.getInt(16) & 0xFFFFFFFFL;
+            compressedSize = centralHeader.getInt(20) & 0xFFFFFFFFL;
+            size = centralHeader.getInt(24) & 0xFFFFFFFFL;
+            localHeaderOffset = centralHeader.getInt(42) & 0xFFFFFFFFL;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        boolean isEncrypted() {
+            return (flags & FLAG_ENCRYPTED) != 0;
+        }
+    }
+}
@@ -7,6 +7,8 @@ import android.util.Log;
 
 import com.google.firebase.analytics.FirebaseAnalytics;
 
+import java.util.Map;
+
 public class AnalyticsManager {
 
     private boolean enabled;
@@ -51,6 +53,25 @@ public class AnalyticsManager {
         report(event, key, value, null, null);
     }
 
+    public void report(String event, Map<String, Object> parameters) {
+        if (!enabled) {
+            return;
+        }
+
+        Bundle bundle = new Bundle();
+        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            Object value = parameter.getValue();
+            // numbers can be aggregated in the console, strings can't
+            if (value instanceof Number) {
+                bundle.putLong(parameter.getKey(), ((Number) value).longValue());
+            } else {
+                bundle.putString(parameter.getKey(), String.valueOf(value));
+            }
+        }
+
+        analytics.logEvent(event, bundle);
+    }
+
     public void setCurrentScreen(Activity activity, String name) {
         if (!enabled) {
             return;
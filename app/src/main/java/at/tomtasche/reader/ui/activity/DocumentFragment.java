@@ -1,6 +1,7 @@
 package at.tomtasche.reader.ui.activity;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
@@ -36,6 +37,7 @@ import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 import at.tomtasche.reader.R;
 import at.tomtasche.reader.background.AndroidFileCache;
+import at.tomtasche.reader.background.EditJournal;
 import at.tomtasche.reader.background.FileLoader;
 import at.tomtasche.reader.background.LoaderService;
 import at.tomtasche.reader.background.LoaderServiceQueue;
@@ -50,7 +52,10 @@ import at.tomtasche.reader.ui.widget.ProgressDialogFragment;
 public class DocumentFragment extends Fragment implements LoaderService.LoaderListener, ActionBar.TabListener, MenuProvider {
 
     private static final String SAVED_KEY_LAST_RESULT = "LAST_RESULT";
-    private static final String SAVED_KEY_CURRENT_HTML_DIFF = "CURRENT_HTML_DIFF";
+    // the diff itself is kept in the EditJournal, big edits don't fit into a Bundle
+    private static final String SAVED_KEY_HAS_HTML_DIFF = "HAS_HTML_DIFF";
+
+    private static final long AUTOSAVE_INTERVAL_MILLIS = 30 * 1000;
 
     private Handler mainHandler;
 
@@ -69,6 +74,11 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
 
     private String currentHtmlDiff;
 
+    // written from the JavaScript thread
+    private volatile String lastJournaledHtmlDiff;
+
+    private Uri lastRecoveryOffer;
+
     private FileLoader.Result resultOnStart;
     private Throwable errorOnStart;
 
@@ -144,7 +154,9 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
                 prepareLoad(lastResult.loaderType, false);
             }
 
-            currentHtmlDiff = savedInstanceState.getString(SAVED_KEY_CURRENT_HTML_DIFF);
+            if (lastResult != null && savedInstanceState.getBoolean(SAVED_KEY_HAS_HTML_DIFF)) {
+                currentHtmlDiff = EditJournal.read(getContext(), lastResult.options);
+            }
 
             pageView.restoreState(savedInstanceState);
         }
@@ -183,7 +195,7 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
         crashManager.log("onSaveInstanceState");
 
         outState.putParcelable(SAVED_KEY_LAST_RESULT, lastResult);
-        outState.putString(SAVED_KEY_CURRENT_HTML_DIFF, currentHtmlDiff);
+        outState.putBoolean(SAVED_KEY_HAS_HTML_DIFF, currentHtmlDiff != null);
 
         pageView.saveState(outState);
     }
@@ -204,6 +216,14 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
         }
     }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+
+        // the app might be killed while it's in the background
+        autosave();
+    }
+
     private void prepareLoad(FileLoader.LoaderType loaderType, boolean showProgress) {
         boolean isUpload = false;
         switch (loaderType) {
@@ -258,12 +278,16 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
             callback.run();
         }
 
+        FileLoader.Result result = lastResult;
         pageView.requestHtml(new PageView.HtmlCallback() {
 
             @Override
             public void onHtml(String htmlDiff) {
                 currentHtmlDiff = htmlDiff;
 
+                // restored from there if the activity is recreated while the destination is picked
+                journal(result.options, htmlDiff);
+
                 callback.run();
             }
         });
@@ -427,6 +451,14 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
 
         dismissProgress();
 
+        lastJournaledHtmlDiff = null;
+        mainHandler.removeCallbacks(autosaveRunnable);
+        if (isJournaled(result)) {
+            mainHandler.postDelayed(autosaveRunnable, AUTOSAVE_INTERVAL_MILLIS);
+        }
+
+        offerRecovery(activity, result);
+
         boolean isPro = getResources().getBoolean(R.bool.DISABLE_TRACKING);
         if (isPro) {
             requestInAppRating(activity);
@@ -442,6 +474,29 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
         }
     }
 
+    @Override
+    public void onLoadUpdate(FileLoader.Result result) {
+        FileLoader.Result shownResult = resultOnStart != null ? resultOnStart : lastResult;
+        if (shownResult == null || shownResult.options != result.options) {
+            return;
+        }
+
+        if (shownResult.partUris.size() != result.partUris.size()) {
+            onLoadSuccess(result);
+
+            return;
+        }
+
+        if (!isActivityReadyForResult(result)) {
+            return;
+        }
+
+        // titles didn't change, only the page that is currently visible has to be reloaded
+        ActionBar bar = ((AppCompatActivity) getActivity()).getSupportActionBar();
+        int index = Math.max(0, bar.getSelectedNavigationIndex());
+        loadData(result.partUris.get(index).toString());
+    }
+
     @Override
     public void onError(FileLoader.Result result, Throwable error) {
         if (!isActivityReadyForResult(result)) {
@@ -541,6 +596,10 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
     public void onSaveSuccess(Uri outFile) {
         currentHtmlDiff = null;
 
+        if (lastResult != null) {
+            EditJournal.clear(getContext(), lastResult.options);
+        }
+
         SnackbarHelper.show(getActivity(), R.string.toast_edit_status_saved, null, false, false);
 
         loadUri(outFile, true, true);
@@ -553,6 +612,110 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
         SnackbarHelper.show(getActivity(), R.string.toast_error_save_failed, null, true, true);
     }
 
+    @Override
+    public void onRecoverSuccess(Uri recoveredFile) {
+        // not persisted, it's only a copy in the cache until the user saves it
+        loadUri(recoveredFile, false, true);
+    }
+
+    @Override
+    public void onRecoverError() {
+        SnackbarHelper.show(getActivity(), R.string.toast_error_recover_failed, null, true, true);
+    }
+
+    public void onEntryError() {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        SnackbarHelper.show(activity, R.string.toast_error_open_entry, null, false, true);
+    }
+
+    // only edits of ODF are saved, see LoaderService.saveSync
+    private boolean isJournaled(FileLoader.Result result) {
+        return result.loaderType == FileLoader.LoaderType.ODF && result.options.translatable;
+    }
+
+    private final Runnable autosaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            autosave();
+
+            mainHandler.postDelayed(this, AUTOSAVE_INTERVAL_MILLIS);
+        }
+    };
+
+    private void autosave() {
+        FileLoader.Result result = lastResult;
+        if (pageView == null || result == null || !isJournaled(result)) {
+            return;
+        }
+
+        pageView.requestHtml(new PageView.HtmlCallback() {
+            @Override
+            public void onHtml(String htmlDiff) {
+                journal(result.options, htmlDiff);
+            }
+        });
+    }
+
+    // called on the JavaScript thread
+    private void journal(FileLoader.Options options, String htmlDiff) {
+        Context context = getContext();
+        if (context == null || htmlDiff == null || htmlDiff.equals(lastJournaledHtmlDiff)) {
+            return;
+        }
+
+        if (EditJournal.isEmpty(htmlDiff)) {
+            if (lastJournaledHtmlDiff != null) {
+                // all edits were reverted
+                EditJournal.clear(context, options);
+                lastJournaledHtmlDiff = null;
+            }
+
+            return;
+        }
+
+        try {
+            EditJournal.append(context, options, htmlDiff);
+
+            lastJournaledHtmlDiff = htmlDiff;
+        } catch (IOException e) {
+            crashManager.log(e);
+        }
+    }
+
+    private void offerRecovery(Activity activity, FileLoader.Result result) {
+        if (result.loaderType != FileLoader.LoaderType.ODF || result.options.cacheUri.equals(lastRecoveryOffer)) {
+            return;
+        }
+
+        if (!EditJournal.exists(activity, result.options)) {
+            return;
+        }
+
+        lastRecoveryOffer = result.options.cacheUri;
+
+        analyticsManager.report("edit_recovery_offer", FirebaseAnalytics.Param.CONTENT_TYPE, result.options.fileType);
+
+        SnackbarHelper.show(activity, R.string.toast_edit_unsaved_changes, new Runnable() {
+            @Override
+            public void run() {
+                analyticsManager.report("edit_recovery_start", FirebaseAnalytics.Param.CONTENT_TYPE, result.options.fileType);
+
+                prepareLoad(result.loaderType, true);
+
+                serviceQueue.addToQueue(new LoaderServiceQueue.QueueEntry() {
+                    @Override
+                    public void onService(LoaderService service) {
+                        service.recoverAsync(result);
+                    }
+                });
+            }
+        }, true, false);
+    }
+
     private void offerUpload(Activity activity, FileLoader.Options options, boolean invasive) {
         String fileType = options.fileType;
         if (invasive) {
@@ -787,6 +950,8 @@ public class DocumentFragment extends Fragment implements LoaderService.LoaderLi
     public void onDestroyView() {
         super.onDestroyView();
 
+        mainHandler.removeCallbacks(autosaveRunnable);
+
         LoaderService service = serviceQueue.getService();
         if (service != null) {
             service.setListener(null);
@@ -6,11 +6,15 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Base64;
 import android.util.Base64InputStream;
 import android.webkit.DownloadListener;
 import android.webkit.JavascriptInterface;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
@@ -19,13 +23,20 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import androidx.annotation.Keep;
 import androidx.webkit.WebSettingsCompat;
 import androidx.webkit.WebViewFeature;
 import at.tomtasche.reader.background.AndroidFileCache;
+import at.tomtasche.reader.background.CsvTable;
 import at.tomtasche.reader.background.OnlineLoader;
+import at.tomtasche.reader.background.SpreadsheetWindow;
 import at.tomtasche.reader.background.StreamUtil;
+import at.tomtasche.reader.background.TableWindow;
+import at.tomtasche.reader.background.ViewerServer;
+import at.tomtasche.reader.background.ZipArchive;
 import at.tomtasche.reader.nonfree.CrashManager;
 import at.tomtasche.reader.ui.ParagraphListener;
 import at.tomtasche.reader.ui.activity.DocumentFragment;
@@ -38,7 +49,14 @@ public class PageView extends WebView implements ParagraphListener {
     private DocumentFragment documentFragment;
     private CrashManager crashManager;
 
-    private HtmlCallback htmlCallback;
+    // answered in the order they were requested, autosave and saving may ask at the same time
+    private final Queue<HtmlCallback> htmlCallbacks = new ConcurrentLinkedQueue<>();
+
+    // page that is currently shown, its rows or entries are served to the page from the JavaScript thread
+    private volatile String pageUrl;
+    private String pageDataUrl;
+    private TableWindow tableWindow;
+    private ZipArchive zipArchive;
 
     /**
      * sometimes the page stays invisible after reporting progress 100: https://stackoverflow.com/q/48082474/198996
@@ -49,12 +67,23 @@ public class PageView extends WebView implements ParagraphListener {
     private final Handler buggyWebViewHandler;
     private boolean wasCommitCalled = false;
 
+    // sorts and extractions run one after another, a new click replaces the ones of its kind that haven't started yet
+    private final HandlerThread backgroundThread;
+    private final Handler backgroundHandler;
+    private final Object sortToken = new Object();
+    private final Object extractToken = new Object();
+
     @SuppressLint("AddJavascriptInterface")
     public PageView(Context context, AttributeSet attributeSet) {
         super(context, attributeSet);
 
         buggyWebViewHandler = new Handler();
 
+        backgroundThread = new HandlerThread(PageView.class.getSimpleName());
+        backgroundThread.start();
+
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+
         WebSettings settings = getSettings();
         settings.setBuiltInZoomControls(true);
         settings.setDisplayZoomControls(false);
@@ -103,6 +132,16 @@ public class PageView extends WebView implements ParagraphListener {
                 wasCommitCalled = true;
             }
 
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                WebResourceResponse response = ViewerServer.handle(getContext(), request);
+                if (response != null) {
+                    return response;
+                }
+
+                return super.shouldInterceptRequest(view, request);
+            }
+
             @Override
             public boolean shouldOverrideUrlLoading(WebView view, String url) {
                 if (url.startsWith(OnlineLoader.GOOGLE_VIEWER_URL) || url.startsWith(OnlineLoader.MICROSOFT_VIEWER_URL) || url.contains("officeapps.live.com/")) {
@@ -149,6 +188,13 @@ public class PageView extends WebView implements ParagraphListener {
     public void loadUrl(String url) {
         wasCommitCalled = false;
 
+        if (!url.startsWith("javascript:")) {
+            pageUrl = url;
+
+            // requests that were not answered by the previous page never will be
+            htmlCallbacks.clear();
+        }
+
         super.loadUrl(url);
     }
 
@@ -179,7 +225,7 @@ public class PageView extends WebView implements ParagraphListener {
     }
 
     public void requestHtml(HtmlCallback callback) {
-        this.htmlCallback = callback;
+        htmlCallbacks.add(callback);
 
         loadUrl("javascript:window.paragraphListener.sendHtml(odr.generateDiff());");
     }
@@ -187,7 +233,10 @@ public class PageView extends WebView implements ParagraphListener {
     @JavascriptInterface
     @Keep
     public void sendHtml(String htmlDiff) {
-        htmlCallback.onHtml(htmlDiff);
+        HtmlCallback callback = htmlCallbacks.poll();
+        if (callback != null) {
+            callback.onHtml(htmlDiff);
+        }
     }
 
     @JavascriptInterface
@@ -215,6 +264,158 @@ public class PageView extends WebView implements ParagraphListener {
         }
     }
 
+    // opens what the JavaScript interface serves for the page that is currently shown
+    private synchronized void updatePageData() {
+        String url = pageUrl;
+        if (url == null || url.equals(pageDataUrl)) {
+            return;
+        }
+
+        Uri uri = Uri.parse(url);
+        if ("file".equals(uri.getScheme())) {
+            tableWindow = SpreadsheetWindow.open(new File(uri.getPath()));
+            zipArchive = null;
+        } else {
+            File csvFile = ViewerServer.getDocument(getContext(), uri, "csv.html");
+            tableWindow = csvFile != null ? CsvTable.open(csvFile) : null;
+
+            File zipFile = ViewerServer.getDocument(getContext(), uri, "archive.html");
+            zipArchive = zipFile != null ? ZipArchive.open(zipFile) : null;
+        }
+
+        pageDataUrl = url;
+    }
+
+    private synchronized TableWindow getTableWindow() {
+        updatePageData();
+
+        return tableWindow;
+    }
+
+    private synchronized ZipArchive getZipArchive() {
+        updatePageData();
+
+        return zipArchive;
+    }
+
+    private synchronized boolean isTableWindow(TableWindow window) {
+        return tableWindow == window && pageUrl != null && pageUrl.equals(pageDataUrl);
+    }
+
+    @JavascriptInterface
+    @Keep
+    public int getRowCount() {
+        TableWindow window = getTableWindow();
+        if (window == null) {
+            return 0;
+        }
+
+        return window.getRowCount();
+    }
+
+    @JavascriptInterface
+    @Keep
+    public String getRows(int from, int to) {
+        TableWindow window = getTableWindow();
+        if (window == null) {
+            return "";
+        }
+
+        try {
+            return window.getRows(from, to);
+        } catch (IOException e) {
+            crashManager.log(e);
+
+            return "";
+        }
+    }
+
+    @JavascriptInterface
+    @Keep
+    public String getHeader() {
+        TableWindow window = getTableWindow();
+        if (!(window instanceof CsvTable)) {
+            return "";
+        }
+
+        return ((CsvTable) window).getHeader();
+    }
+
+    @JavascriptInterface
+    @Keep
+    public void sortRows(int column, boolean ascending) {
+        TableWindow window = getTableWindow();
+        if (!(window instanceof CsvTable)) {
+            return;
+        }
+
+        CsvTable table = (CsvTable) window;
+
+        // sorting a few hundred thousand rows takes a while, the page is told once they are in order
+        backgroundHandler.removeCallbacksAndMessages(sortToken);
+        backgroundHandler.postAtTime(() -> {
+            try {
+                if (!table.sort(column, ascending)) {
+                    crashManager.log("too many rows to sort");
+                }
+            } catch (Throwable e) {
+                // e.g. OutOfMemoryError, the page still has to leave the sorting state
+                crashManager.log(e);
+            } finally {
+                post(() -> {
+                    if (isTableWindow(table)) {
+                        loadUrl("javascript:if (window.odrWindow) { odrWindow.reset(); }");
+                    }
+                });
+            }
+        }, sortToken, SystemClock.uptimeMillis());
+    }
+
+    @JavascriptInterface
+    @Keep
+    public String getEntries(String folder) {
+        ZipArchive archive = getZipArchive();
+        if (archive == null) {
+            return "";
+        }
+
+        return archive.getListing(folder);
+    }
+
+    @JavascriptInterface
+    @Keep
+    public void openEntry(String name) {
+        ZipArchive archive = getZipArchive();
+        if (archive == null) {
+            return;
+        }
+
+        // entries can be big too, they are opened like any other document once they are extracted
+        backgroundHandler.removeCallbacksAndMessages(extractToken);
+        backgroundHandler.postAtTime(() -> {
+            File entryFile = AndroidFileCache.createCacheFile(getContext(), ZipArchive.getFileName(name));
+            try {
+                archive.extract(name, entryFile);
+
+                post(() -> documentFragment.loadUri(AndroidFileCache.getCacheFileUri(getContext(), entryFile), false));
+            } catch (Throwable e) {
+                crashManager.log(e);
+
+                entryFile.delete();
+
+                post(() -> documentFragment.onEntryError());
+            }
+        }, extractToken, SystemClock.uptimeMillis());
+    }
+
+    @Override
+    public void destroy() {
+        // a running sort or extraction still finishes, its result is dropped with the view
+        backgroundThread.quit();
+
+        super.destroy();
+    }
+
     @Override
     @Keep
     @JavascriptInterface
@@ -0,0 +1,20 @@
+#!/bin/bash
+# builds odr-core for the host and runs the core on a desktop JVM, e.g. for benchmarking or profiling:
+# ./build-host.sh [--iterations n] [--editable] document...
+
+set -e
+
+BUILD_DIR=app/build/host
+
+conan install app/conanfile.txt --profile:host=app/conanprofile-host.txt --profile:build=default --output-folder=$BUILD_DIR --build=missing
+cmake -S app -B $BUILD_DIR -DCMAKE_TOOLCHAIN_FILE=conan_toolchain.cmake -DCMAKE_BUILD_TYPE=RelWithDebInfo
+cmake --build $BUILD_DIR --target odr-core
+
+mkdir -p $BUILD_DIR/classes
+javac -d $BUILD_DIR/classes \
+    app/src/main/java/at/tomtasche/reader/background/CoreWrapper.java \
+    app/src/host/java/at/tomtasche/reader/host/CoreRunner.java
+
+if [ $# -gt 0 ]; then
+    java -Djava.library.path=$BUILD_DIR -cp $BUILD_DIR/classes at.tomtasche.reader.host.CoreRunner "$@"
+fi